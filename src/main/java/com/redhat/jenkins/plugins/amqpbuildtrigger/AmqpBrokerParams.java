@@ -2,6 +2,7 @@ package com.redhat.jenkins.plugins.amqpbuildtrigger;
 
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.Util;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.util.FormValidation;
@@ -30,11 +31,36 @@ import com.redhat.jenkins.plugins.validator.UrlValidator;
 
 public class AmqpBrokerParams implements Describable<AmqpBrokerParams> {
     private static final String DISPLAY_NAME = "AMQP server parameters";
+    public static final int DEFAULT_ACK_BATCH_SIZE = 100;
+    public static final int DEFAULT_ACK_BATCH_TIME = 1000; // ms, ie 1 sec
+
+    public enum AcknowledgeMode {
+        /** Each message is acknowledged once it has been handed to the dispatcher */
+        AUTO,
+        /** Acknowledgements are sent lazily, a reconnect may redeliver some messages */
+        DUPS_OK,
+        /** Messages are acknowledged in batches, after a number of messages or a time, whichever comes first */
+        CLIENT_BATCHED,
+        /** Each message is acknowledged once its builds are scheduled, and redelivered if scheduling fails */
+        AFTER_SCHEDULED,
+        /**
+         * Messages are received in batches on a transacted session, and each batch is committed once its builds are
+         * scheduled, or rolled back for redelivery if scheduling fails
+         */
+        TRANSACTED_BATCH
+    }
 
     private String url;
     private String user;
     private Secret password;
     private String sourceAddr;
+    private Integer prefetch;
+    private AcknowledgeMode ackMode;
+    private Integer ackBatchSize;
+    private Integer ackBatchTime;
+    private Integer consumers;
+    private String deduplicationProperty;
+    private String deadLetterAddr;
 
     @DataBoundConstructor
     public AmqpBrokerParams(String url, String username, Secret password, String sourceAddr) {
@@ -60,6 +86,56 @@ public class AmqpBrokerParams implements Describable<AmqpBrokerParams> {
         return sourceAddr;
     }
 
+    /**
+     * @return the consumer prefetch for this source, or {@code null} to use the global default
+     */
+    public Integer getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @return the acknowledge mode for this source, or {@code null} for {@link AcknowledgeMode#AUTO}
+     */
+    public AcknowledgeMode getAckMode() {
+        return ackMode;
+    }
+
+    /**
+     * @return the number of messages acknowledged together in {@link AcknowledgeMode#CLIENT_BATCHED} and
+     * {@link AcknowledgeMode#TRANSACTED_BATCH} modes, or {@code null} for the default
+     */
+    public Integer getAckBatchSize() {
+        return ackBatchSize;
+    }
+
+    /**
+     * @return the longest time in ms a message waits for its batch to be acknowledged, or {@code null} for the default
+     */
+    public Integer getAckBatchTime() {
+        return ackBatchTime;
+    }
+
+    /**
+     * @return the number of competing consumers for this source, or {@code null} for one
+     */
+    public Integer getConsumers() {
+        return consumers;
+    }
+
+    /**
+     * @return the message property identifying duplicate messages, or {@code null} for the message id
+     */
+    public String getDeduplicationProperty() {
+        return deduplicationProperty;
+    }
+
+    /**
+     * @return the address on the same server to send messages to whose builds cannot be scheduled, or {@code null}
+     */
+    public String getDeadLetterAddr() {
+        return deadLetterAddr;
+    }
+
     @DataBoundSetter
     public void setUrl(String url) {
         this.url = url;
@@ -84,10 +160,53 @@ public class AmqpBrokerParams implements Describable<AmqpBrokerParams> {
         this.sourceAddr = sourceAddr;
     }
 
+    @DataBoundSetter
+    public void setPrefetch(Integer prefetch) {
+        this.prefetch = prefetch != null && prefetch >= 0 ? prefetch : null;
+    }
+
+    @DataBoundSetter
+    public void setAckMode(AcknowledgeMode ackMode) {
+        this.ackMode = ackMode;
+    }
+
+    @DataBoundSetter
+    public void setAckBatchSize(Integer ackBatchSize) {
+        this.ackBatchSize = ackBatchSize != null && ackBatchSize > 0 ? ackBatchSize : null;
+    }
+
+    @DataBoundSetter
+    public void setAckBatchTime(Integer ackBatchTime) {
+        this.ackBatchTime = ackBatchTime != null && ackBatchTime > 0 ? ackBatchTime : null;
+    }
+
+    @DataBoundSetter
+    public void setConsumers(Integer consumers) {
+        this.consumers = consumers != null && consumers > 0 ? consumers : null;
+    }
+
+    @DataBoundSetter
+    public void setDeduplicationProperty(String deduplicationProperty) {
+        this.deduplicationProperty = StringUtils.trimToNull(deduplicationProperty);
+    }
+
+    @DataBoundSetter
+    public void setDeadLetterAddr(String deadLetterAddr) {
+        this.deadLetterAddr = StringUtils.trimToNull(deadLetterAddr);
+    }
+
     public String toString() {
         return url + "/" + sourceAddr;
     }
 
+    /**
+     * Identifies the broker endpoint and credentials, so that all sources with the same key can share a connection.
+     * The password only contributes a digest to the key.
+     */
+    public String getConnectionKey() {
+        return getUrl() + "|" + StringUtils.defaultString(user) + "|" + Util.getDigestOf(Secret.toString(password));
+    }
+
     public boolean isValid() {
         if (url != null && !url.isEmpty()) {
             UrlValidator urlValidator = new UrlValidator();
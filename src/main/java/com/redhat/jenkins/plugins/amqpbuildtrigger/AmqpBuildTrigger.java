@@ -4,34 +4,45 @@ import hudson.Extension;
 import hudson.model.CauseAction;
 import hudson.model.Item;
 import hudson.model.Job;
-import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
-import hudson.model.ParametersDefinitionProperty;
-import hudson.model.StringParameterValue;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
 
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import jenkins.model.Jenkins;
 import jenkins.model.ParameterizedJobMixIn;
 
-import net.sf.json.JSONArray;
-import net.sf.json.JSONObject;
-
+import org.apache.commons.lang3.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class AmqpBuildTrigger<T extends Job<?, ?> & ParameterizedJobMixIn.ParameterizedJob> extends Trigger<T> {
     private static final Logger LOGGER = Logger.getLogger(AmqpBuildTrigger.class.getName());
-    private static final String KEY_PARAM_NAME = "name";
-    private static final String KEY_PARAM_VALUE = "value";
+    private static final AtomicLong staleCount = new AtomicLong();
     private static final String PLUGIN_NAME = "[AmqpBuildTrigger] - Trigger builds using AMQP 1.0 messages";
     private List<AmqpBrokerParams> amqpBrokerParamsList = new CopyOnWriteArrayList<AmqpBrokerParams>();
+    private ParameterSource parameterSource = ParameterSource.BODY;
+    private int coalesceWindow = 0;
+    private String coalesceParameter;
+    private TriggerCoalescer.Mode coalesceMode = TriggerCoalescer.Mode.LATEST;
+    private int maxMessageAge = 0;
+    private transient volatile ParameterMapping parameterMapping = null;
+    private transient volatile TriggerCoalescer coalescer = null;
 
     @DataBoundConstructor
     public AmqpBuildTrigger(List<AmqpBrokerParams> amqpBrokerParamsList) {
@@ -48,6 +59,88 @@ public class AmqpBuildTrigger<T extends Job<?, ?> & ParameterizedJobMixIn.Parame
         this.amqpBrokerParamsList = amqpBrokerParamsList;
     }
 
+    public ParameterSource getParameterSource() {
+        return parameterSource != null ? parameterSource : ParameterSource.BODY;
+    }
+
+    @DataBoundSetter
+    public void setParameterSource(ParameterSource parameterSource) {
+        this.parameterSource = parameterSource;
+    }
+
+    public int getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    @DataBoundSetter
+    public void setCoalesceWindow(int coalesceWindow) {
+        this.coalesceWindow = Math.max(0, coalesceWindow);
+    }
+
+    public String getCoalesceParameter() {
+        return coalesceParameter;
+    }
+
+    @DataBoundSetter
+    public void setCoalesceParameter(String coalesceParameter) {
+        this.coalesceParameter = StringUtils.trimToNull(coalesceParameter);
+    }
+
+    public TriggerCoalescer.Mode getCoalesceMode() {
+        return coalesceMode != null ? coalesceMode : TriggerCoalescer.Mode.LATEST;
+    }
+
+    @DataBoundSetter
+    public void setCoalesceMode(TriggerCoalescer.Mode coalesceMode) {
+        this.coalesceMode = coalesceMode;
+    }
+
+    /**
+     * @return the age in seconds beyond which messages do not trigger this job, 0 for no limit
+     */
+    public int getMaxMessageAge() {
+        return maxMessageAge;
+    }
+
+    @DataBoundSetter
+    public void setMaxMessageAge(int maxMessageAge) {
+        this.maxMessageAge = Math.max(0, maxMessageAge);
+    }
+
+    /**
+     * Checks a message against its expiry time and the maximum message age of this job, without decoding it.
+     *
+     * @return true if the message is stale and must not trigger this job
+     */
+    public boolean isStale(TriggerMessage message) {
+        long now = System.currentTimeMillis();
+        String reason = null;
+        if (message.isExpired(now)) {
+            reason = "expired";
+        } else if (maxMessageAge > 0 && message.getTimestamp() > 0 && now - message.getTimestamp() > maxMessageAge * 1000L) {
+            reason = "older than " + maxMessageAge + " seconds";
+        }
+        if (reason == null) {
+            return false;
+        }
+        if (message.markStale()) {
+            staleCount.incrementAndGet();
+        }
+        // Not logged at INFO, as a backlog of stale messages would flood the log with a line per message and job
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Message " + reason + ", not triggering " + getProjectName() + ": " + message);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of stale messages discarded instead of triggering a job, counting each message once however
+     *         many jobs it was discarded for
+     */
+    public static long getStaleCount() {
+        return staleCount.get();
+    }
+
     @Override
     public String toString() {
         return getProjectName();
@@ -60,58 +153,156 @@ public class AmqpBuildTrigger<T extends Job<?, ?> & ParameterizedJobMixIn.Parame
         return "";
     }
 
-    public void scheduleBuild(String messageSource, String message) {
-        if (job != null && messageSource != null) {
+    /**
+     * Requests a build for a message, without waiting for it to be scheduled.
+     *
+     * @param callback told true once the build is scheduled, or is found not to be needed, and false if it could not
+     *                 be scheduled
+     */
+    public void scheduleBuild(TriggerMessage message, Consumer<Boolean> callback) {
+        // Checked again, as the message may have gone stale while waiting to be dispatched
+        if (job != null && message.getSource() != null && !isStale(message)) {
             LOGGER.info("ScheduleBuild with message: " + message);
-            JSONArray jsonArray = convertStringToJSONArray(message);
-            if (jsonArray != null) {
-                LOGGER.info("Message in JSONArray format, converting to matching params ...");
-                List<ParameterValue> parameters = getUpdatedParameters(jsonArray, getDefinitionParameters(job));
-                ParameterizedJobMixIn.scheduleBuild2(job, 0, new CauseAction(new RemoteBuildCause(messageSource)), new ParametersAction(parameters));
-            } else {
-                LOGGER.info("Message NOT in JSONArray format");
-                ParameterizedJobMixIn.scheduleBuild2(job, 0, new CauseAction(new RemoteBuildCause(messageSource)));
-            }
+            scheduleBuild(message.getSource(), getParameters(message), callback);
+        } else {
+            callback.accept(true);
         }
     }
 
-    // method to convert a string into a JSONArray
-    private JSONArray convertStringToJSONArray(String message) {
-        try {
-            return JSONArray.fromObject(message);
-        } catch (Exception e) {
-            return JSONArray.fromObject("[]");
+    /**
+     * Requests builds for a batch of messages. Messages which map to the same parameters schedule only one build.
+     *
+     * @param callback told true once all builds are scheduled, and false if any could not be
+     */
+    public void scheduleBuilds(List<TriggerMessage> messages, Consumer<Boolean> callback) {
+        if (job == null) {
+            callback.accept(true);
+            return;
+        }
+        Set<List<ParameterValue>> unique = new HashSet<List<ParameterValue>>();
+        List<TriggerMessage> scheduled = new ArrayList<TriggerMessage>();
+        List<List<ParameterValue>> parameters = new ArrayList<List<ParameterValue>>();
+        for (TriggerMessage message : messages) {
+            if (message.getSource() != null && !isStale(message)) {
+                List<ParameterValue> p = getParameters(message);
+                if (unique.add(p)) {
+                    scheduled.add(message);
+                    parameters.add(p);
+                }
+            }
+        }
+        LOGGER.info("Scheduling " + scheduled.size() + " of " + messages.size() + " messages in batch for " + getProjectName());
+        Consumer<Boolean> all = all(scheduled.size(), callback);
+        for (int i = 0; i < scheduled.size(); i++) {
+            scheduleBuild(scheduled.get(i).getSource(), parameters.get(i), all);
         }
-    } 
+    }
 
-    private List<ParameterValue> getUpdatedParameters(JSONArray jsonParameters, List<ParameterValue> definedParameters) {
-        List<ParameterValue> newParams = new CopyOnWriteArrayList<ParameterValue>();
-        for (ParameterValue defParam : definedParameters) {
-            for (int i = 0; i < jsonParameters.size(); i++) {
-                JSONObject jsonParam = jsonParameters.getJSONObject(i);
-                if (defParam.getName().toUpperCase().equals(jsonParam.getString(KEY_PARAM_NAME).toUpperCase())) {
-                    newParams.add(new StringParameterValue(defParam.getName(), jsonParam.getString(KEY_PARAM_VALUE)));
+    /**
+     * @return a callback which tells {@code callback} once it has been called {@code count} times, whether every
+     *         call was told true
+     */
+    static Consumer<Boolean> all(int count, final Consumer<Boolean> callback) {
+        if (count == 0) {
+            callback.accept(true);
+        }
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final AtomicBoolean success = new AtomicBoolean(true);
+        return new Consumer<Boolean>() {
+            @Override
+            public void accept(Boolean scheduled) {
+                if (!scheduled) {
+                    success.set(false);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    callback.accept(success.get());
                 }
             }
+        };
+    }
+
+    private void scheduleBuild(String messageSource, List<ParameterValue> parameters, Consumer<Boolean> callback) {
+        LOGGER.info("Params: " + parameters.toString());
+        if (coalesceWindow > 0) {
+            getCoalescer().offer(messageSource, parameters, coalesceParameter, getCoalesceMode(), coalesceWindow, callback);
+        } else {
+            schedule(messageSource, parameters, callback);
         }
-        LOGGER.info("Params: " + newParams.toString());
-        return newParams;
     }
 
-    private List<ParameterValue> getDefinitionParameters(Job<?, ?> project) {
-        List<ParameterValue> parameters = new CopyOnWriteArrayList<ParameterValue>();
-        if (project != null) {
-            ParametersDefinitionProperty properties = project.getProperty(ParametersDefinitionProperty.class);
-            if (properties != null) {
-                for (ParameterDefinition paramDef : properties.getParameterDefinitions()) {
-                    ParameterValue param = paramDef.getDefaultParameterValue();
-                    if (param != null) {
-                        parameters.add(param);
-                    }
+    /**
+     * Requests the build. A job which is disabled, or otherwise cannot be built, is skipped and reported as done,
+     * since trying again would not help and must not hold up the message for other jobs.
+     */
+    void schedule(String messageSource, List<ParameterValue> parameters, Consumer<Boolean> callback) {
+        if (job == null) {
+            callback.accept(true);
+        } else if (!job.isBuildable()) {
+            LOGGER.info("Job " + getProjectName() + " cannot be built, not triggering it from " + messageSource);
+            callback.accept(true);
+        } else {
+            BulkScheduler.getInstance().schedule(job, callback, new CauseAction(new RemoteBuildCause(messageSource)), new ParametersAction(parameters));
+        }
+    }
+
+    private TriggerCoalescer getCoalescer() {
+        TriggerCoalescer c = coalescer;
+        if (c == null) {
+            synchronized (this) {
+                c = coalescer;
+                if (c == null) {
+                    c = new TriggerCoalescer(this);
+                    coalescer = c;
                 }
             }
         }
-        return parameters;
+        return c;
+    }
+
+    private List<ParameterValue> getParameters(final TriggerMessage message) {
+        switch (getParameterSource()) {
+            case PROPERTIES:
+                return getParameterMapping().map(message.getPropertyParameters());
+            case PROPERTIES_AND_BODY:
+                // The body is only decoded if the properties do not supply every parameter
+                return getParameterMapping().map(message.getPropertyParameters(), new Supplier<List<TriggerMessage.Parameter>>() {
+                    @Override
+                    public List<TriggerMessage.Parameter> get() {
+                        return message.getParameters();
+                    }
+                });
+            case BODY:
+            default:
+                return getParameterMapping().map(message.getParameters());
+        }
+    }
+
+    private ParameterMapping getParameterMapping() {
+        ParameterMapping m = ParameterMapping.of(job, parameterMapping);
+        parameterMapping = m;
+        return m;
+    }
+
+    /**
+     * Accepts the case-folded names of the parameters this job defines, or {@code null} if the job is not known yet.
+     */
+    public Predicate<String> getParameterFilter() {
+        if (job == null) {
+            return null;
+        }
+        return new Predicate<String>() {
+            @Override
+            public boolean test(String key) {
+                return getParameterMapping().contains(key);
+            }
+        };
+    }
+
+    /**
+     * Drops the cached parameter mapping, so that it is rebuilt from the job configuration on the next message.
+     */
+    public void invalidateParameterMapping() {
+        parameterMapping = null;
     }
 
     @Override
@@ -119,6 +310,18 @@ public class AmqpBuildTrigger<T extends Job<?, ?> & ParameterizedJobMixIn.Parame
         return (AmqpBuildTriggerDescriptor) Jenkins.getInstance().getDescriptor(getClass());
     }
 
+    /**
+     * Where the values of build parameters are taken from.
+     */
+    public enum ParameterSource {
+        /** The message body */
+        BODY,
+        /** The application properties of the message, the body is never read */
+        PROPERTIES,
+        /** The application properties, and the body for parameters not found in the properties */
+        PROPERTIES_AND_BODY
+    }
+
     @Extension
     public static class AmqpBuildTriggerDescriptor extends TriggerDescriptor {
 
@@ -0,0 +1,202 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.Extension;
+import hudson.util.FormValidation;
+
+import jenkins.model.GlobalConfiguration;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global settings of the AMQP Build Trigger, shown on the Configure System page.
+ */
+@Extension
+public class AmqpBuildTriggerConfiguration extends GlobalConfiguration {
+    public static final int DEFAULT_DISPATCH_THREADS = 4;
+    public static final int DEFAULT_DISPATCH_QUEUE_CAPACITY = 10000;
+    public static final TriggerDispatcher.OverflowPolicy DEFAULT_DISPATCH_OVERFLOW_POLICY = TriggerDispatcher.OverflowPolicy.BLOCK;
+    // Same as the AMQP client's own default
+    public static final int DEFAULT_PREFETCH = 1000;
+    public static final int DEFAULT_ADAPTIVE_PREFETCH_THRESHOLD = 100;
+    public static final int DEFAULT_DEDUPLICATION_WINDOW = 300; // sec, ie 5 min
+    public static final int DEFAULT_DEDUPLICATION_CAPACITY = 100000;
+    public static final int DEFAULT_RETRY_ATTEMPTS = 3;
+    public static final int DEFAULT_RETRY_DELAY = 1000; // ms, ie 1 sec
+
+    private int dispatchThreads = DEFAULT_DISPATCH_THREADS;
+    private int dispatchQueueCapacity = DEFAULT_DISPATCH_QUEUE_CAPACITY;
+    private TriggerDispatcher.OverflowPolicy dispatchOverflowPolicy = DEFAULT_DISPATCH_OVERFLOW_POLICY;
+    private int defaultPrefetch = DEFAULT_PREFETCH;
+    private boolean adaptivePrefetch = false;
+    private int adaptivePrefetchThreshold = DEFAULT_ADAPTIVE_PREFETCH_THRESHOLD;
+    private int deduplicationWindow = DEFAULT_DEDUPLICATION_WINDOW;
+    private int deduplicationCapacity = DEFAULT_DEDUPLICATION_CAPACITY;
+    private boolean journal = false;
+    private int retryAttempts = DEFAULT_RETRY_ATTEMPTS;
+    private int retryDelay = DEFAULT_RETRY_DELAY;
+
+    public AmqpBuildTriggerConfiguration() {
+        load();
+    }
+
+    public static AmqpBuildTriggerConfiguration get() {
+        return GlobalConfiguration.all().get(AmqpBuildTriggerConfiguration.class);
+    }
+
+    public int getDispatchThreads() {
+        return dispatchThreads;
+    }
+
+    @DataBoundSetter
+    public void setDispatchThreads(int dispatchThreads) {
+        this.dispatchThreads = Math.max(1, dispatchThreads);
+    }
+
+    public int getDispatchQueueCapacity() {
+        return dispatchQueueCapacity;
+    }
+
+    @DataBoundSetter
+    public void setDispatchQueueCapacity(int dispatchQueueCapacity) {
+        this.dispatchQueueCapacity = Math.max(1, dispatchQueueCapacity);
+    }
+
+    public TriggerDispatcher.OverflowPolicy getDispatchOverflowPolicy() {
+        return dispatchOverflowPolicy != null ? dispatchOverflowPolicy : DEFAULT_DISPATCH_OVERFLOW_POLICY;
+    }
+
+    @DataBoundSetter
+    public void setDispatchOverflowPolicy(TriggerDispatcher.OverflowPolicy dispatchOverflowPolicy) {
+        this.dispatchOverflowPolicy = dispatchOverflowPolicy;
+    }
+
+    public int getDefaultPrefetch() {
+        return defaultPrefetch;
+    }
+
+    @DataBoundSetter
+    public void setDefaultPrefetch(int defaultPrefetch) {
+        this.defaultPrefetch = Math.max(0, defaultPrefetch);
+    }
+
+    public boolean isAdaptivePrefetch() {
+        return adaptivePrefetch;
+    }
+
+    @DataBoundSetter
+    public void setAdaptivePrefetch(boolean adaptivePrefetch) {
+        this.adaptivePrefetch = adaptivePrefetch;
+    }
+
+    public int getAdaptivePrefetchThreshold() {
+        return adaptivePrefetchThreshold > 0 ? adaptivePrefetchThreshold : DEFAULT_ADAPTIVE_PREFETCH_THRESHOLD;
+    }
+
+    @DataBoundSetter
+    public void setAdaptivePrefetchThreshold(int adaptivePrefetchThreshold) {
+        this.adaptivePrefetchThreshold = Math.max(1, adaptivePrefetchThreshold);
+    }
+
+    /**
+     * @return the time in seconds for which duplicate messages are suppressed, 0 if they are not
+     */
+    public int getDeduplicationWindow() {
+        return deduplicationWindow;
+    }
+
+    @DataBoundSetter
+    public void setDeduplicationWindow(int deduplicationWindow) {
+        this.deduplicationWindow = Math.max(0, deduplicationWindow);
+    }
+
+    public int getDeduplicationCapacity() {
+        return deduplicationCapacity > 0 ? deduplicationCapacity : DEFAULT_DEDUPLICATION_CAPACITY;
+    }
+
+    @DataBoundSetter
+    public void setDeduplicationCapacity(int deduplicationCapacity) {
+        this.deduplicationCapacity = Math.max(1, deduplicationCapacity);
+    }
+
+    public boolean isJournal() {
+        return journal;
+    }
+
+    @DataBoundSetter
+    public void setJournal(boolean journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return the number of times scheduling a build is retried after it failed
+     */
+    public int getRetryAttempts() {
+        return retryAttempts;
+    }
+
+    @DataBoundSetter
+    public void setRetryAttempts(int retryAttempts) {
+        this.retryAttempts = Math.max(0, retryAttempts);
+    }
+
+    /**
+     * @return the delay in ms before the first retry, which doubles for each further retry
+     */
+    public int getRetryDelay() {
+        return retryDelay > 0 ? retryDelay : DEFAULT_RETRY_DELAY;
+    }
+
+    @DataBoundSetter
+    public void setRetryDelay(int retryDelay) {
+        this.retryDelay = Math.max(1, retryDelay);
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        req.bindJSON(this, json);
+        save();
+        TriggerDispatcher.getInstance().reconfigure();
+        DeduplicationCache.getInstance().reconfigure();
+        // Messages left pending by the last run are replayed if the journal was just enabled, or failed to replay
+        ConnectionManager.getInstance().replayJournal();
+        // Sources using the default prefetch are reopened if it changed
+        ConnectionManager.getInstance().updateAsync();
+        return true;
+    }
+
+    public FormValidation doCheckDispatchThreads(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckDispatchQueueCapacity(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckDefaultPrefetch(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckAdaptivePrefetchThreshold(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckDeduplicationWindow(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckDeduplicationCapacity(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckRetryAttempts(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckRetryDelay(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+}
@@ -0,0 +1,68 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+/**
+ * Status page under Manage Jenkins showing the state of the AMQP Build Trigger.
+ */
+@Extension
+public class AmqpBuildTriggerStatus extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-analytics";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "AMQP Build Trigger";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "amqp-build-trigger";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Status of AMQP trigger sources and message dispatching.";
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    public ConnectionManager getConnectionManager() {
+        return ConnectionManager.getInstance();
+    }
+
+    public TriggerDispatcher getDispatcher() {
+        return TriggerDispatcher.getInstance();
+    }
+
+    public BulkScheduler getBulkScheduler() {
+        return BulkScheduler.getInstance();
+    }
+
+    public DeduplicationCache getDeduplicationCache() {
+        return DeduplicationCache.getInstance();
+    }
+
+    public TriggerJournal getJournal() {
+        return TriggerJournal.getInstance();
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return RetryPolicy.getInstance();
+    }
+
+    public long getStaleCount() {
+        return AmqpBuildTrigger.getStaleCount();
+    }
+
+    public int getPrefetchDivisor() {
+        return 1 << PrefetchController.getLevel();
+    }
+}
@@ -1,65 +1,224 @@
 package com.redhat.jenkins.plugins.amqpbuildtrigger;
 
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.Set;
+import java.util.Map;
 
 import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
-import javax.jms.MessageConsumer;
-import javax.jms.Queue;
-import javax.jms.Session;
+
+import jenkins.util.Timer;
 
 import org.apache.qpid.jms.JmsConnection;
 import org.apache.qpid.jms.JmsConnectionFactory;
+import org.apache.qpid.jms.JmsDefaultConnectionListener;
+import org.apache.qpid.jms.JmsDestination;
+import org.apache.qpid.jms.JmsSession;
+import org.apache.qpid.jms.policy.JmsPrefetchPolicy;
 
 //Temporary, until enforcer issues with org.apache.commons.validator can be sorted out
 import com.redhat.jenkins.plugins.validator.UrlValidator;
 
+/**
+ * A connection to one broker endpoint (url, user and password), shared by all the sources on that endpoint.
+ */
 public class AmqpConnection {
     private static final Logger LOGGER = Logger.getLogger(AmqpBuildTrigger.class.getName());
-    private final Set<AmqpBuildTrigger> triggers = new CopyOnWriteArraySet<AmqpBuildTrigger>();
-    private AmqpBrokerParams brokerParams;
+    private static final long RECONNECT_BASE_DELAY = 100; // ms
+    private static final long RECONNECT_MAX_DELAY = 60000; // ms, ie 60 sec
+    static final long CONNECT_TIMEOUT = 15000; // ms, ie 15 sec
+    private final Map<String, AmqpSource> sources = new ConcurrentHashMap<String, AmqpSource>();
+    // Guards changes to the sources, never held while calling into the JMS client, so that adding and removing
+    // triggers does not wait for a connection being opened
+    private final Object sourceLock = new Object();
+    // Sources whose last trigger was removed, closed by the next update()
+    private final List<AmqpSource> removedSources = new ArrayList<AmqpSource>();
+    private final AmqpBrokerParams brokerParams;
     private JmsConnection connection = null;
-    private Session session = null;
-    private MessageConsumer messageConsumer = null;
+    private ReconnectListener reconnectListener = null;
+    // Guards the reconnect state, never held while calling into the JMS client
+    private final Object reconnectLock = new Object();
+    private ScheduledFuture<?> reconnectFuture = null;
+    private int reconnectAttempts = 0;
+    private volatile boolean closed = false;
 
     public AmqpConnection(AmqpBrokerParams brokerParams) {
         this.brokerParams = brokerParams;
     }
 
-    public boolean addBuildTrigger(AmqpBuildTrigger trigger) {
-        if (trigger != null) {
-            return triggers.add(trigger);
+    /**
+     * Adds a trigger to the source for its params. A new source is opened by the next {@link #update()}.
+     */
+    public boolean addBuildTrigger(AmqpBrokerParams params, AmqpBuildTrigger trigger) {
+        if (trigger == null) {
+            return false;
+        }
+        synchronized (sourceLock) {
+            AmqpSource source = sources.get(params.getSourceAddr());
+            if (source == null) {
+                source = new AmqpSource(params);
+                sources.put(params.getSourceAddr(), source);
+            }
+            return source.addBuildTrigger(params, trigger);
         }
-        return false;
     }
 
-    public void update() {
-        if (!brokerParams.isValid()) {
-            shutdown();
+    /**
+     * Removes a trigger from its source. A source left without triggers is closed by the next {@link #update()}.
+     */
+    public boolean removeBuildTrigger(String sourceAddr, AmqpBuildTrigger trigger) {
+        synchronized (sourceLock) {
+            AmqpSource source = sources.get(sourceAddr);
+            if (source == null || !source.removeBuildTrigger(trigger)) {
+                return false;
+            }
+            if (source.isEmpty()) {
+                sources.remove(sourceAddr);
+                removedSources.add(source);
+            }
+            return true;
+        }
+    }
+
+    private List<AmqpSource> takeRemovedSources() {
+        synchronized (sourceLock) {
+            List<AmqpSource> removed = new ArrayList<AmqpSource>(removedSources);
+            removedSources.clear();
+            return removed;
+        }
+    }
+
+    public boolean isEmpty() {
+        return sources.isEmpty();
+    }
+
+    public int getSourceCount() {
+        return sources.size();
+    }
+
+    public Collection<AmqpSource> getSources() {
+        return Collections.unmodifiableCollection(sources.values());
+    }
+
+    private void setSourceState(AmqpSource.State state, String error) {
+        for (AmqpSource source : sources.values()) {
+            if (state == AmqpSource.State.FAILED) {
+                source.setFailed(error);
+            } else if (source.getBrokerParams().isValid()) {
+                // An invalid source stays failed whatever the connection does
+                source.setState(state);
+            }
+        }
+    }
+
+    public synchronized void update() {
+        if (closed) {
             return;
         }
-        if (connection != null &&
-                !brokerParams.getUrl().equals(connection.getConnectedURI().toString().split("\\?")[0]) &&
-                !brokerParams.getUser().equals(connection.getUsername()) &&
-                !brokerParams.getPassword().getPlainText().equals(connection.getPassword())) {
+        for (AmqpSource source : takeRemovedSources()) {
+            source.retire();
+        }
+        // Only the endpoint is checked here, as the params are those of whichever source created the connection.
+        // Each source checks its own address when it is opened.
+        String url = brokerParams.getUrl();
+        if (url == null || !new UrlValidator().isValid(url)) {
             shutdown();
+            setSourceState(AmqpSource.State.FAILED, "Invalid server URL");
+            return;
         }
-        if (connection != null && connection.isConnected() == false) {
+        // The client leaves a connection marked connected after a provider failure, so that is tracked separately
+        if (connection != null && (!connection.isConnected() || reconnectListener.failed)) {
             shutdown();
         }
+        boolean ok;
         if (connection == null) {
-            open(getMessageListener());
+            ok = open();
+        } else {
+            // Open sources added (or failed) since the connection was established, and reopen those whose
+            // consumer settings have changed
+            ok = true;
+            for (AmqpSource source : sources.values()) {
+                if (source.isStale()) {
+                    source.retire();
+                }
+                if (!source.isOpen() && !source.open(connection)) {
+                    ok = false;
+                }
+            }
+        }
+        if (ok) {
+            resetReconnect();
+        } else {
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Schedules a call to {@link #update()} after an exponentially increasing delay with full jitter, so that
+     * connections dropped by the same broker restart do not all reconnect at the same moment. Does nothing if a
+     * reconnect is already pending. The timer only hands the update to the connect threads of the
+     * {@link ConnectionManager}, as it may block for up to the connect timeout.
+     */
+    public void scheduleReconnect() {
+        synchronized (reconnectLock) {
+            if (closed || (reconnectFuture != null && !reconnectFuture.isDone())) {
+                return;
+            }
+            long maxDelay = RECONNECT_MAX_DELAY;
+            if (reconnectAttempts < 20) {
+                maxDelay = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY << reconnectAttempts);
+            }
+            long delay = ThreadLocalRandom.current().nextLong(maxDelay + 1);
+            reconnectAttempts++;
+            LOGGER.info("Reconnecting to broker \"" + brokerParams.getUrl() + "\" in " + delay + " ms (attempt " + reconnectAttempts + ")");
+            reconnectFuture = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (reconnectLock) {
+                        reconnectFuture = null;
+                    }
+                    ConnectionManager.getInstance().updateAsync(AmqpConnection.this);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
         }
     }
 
-    public boolean open(AmqpMessageListener listener) {
+    private void resetReconnect() {
+        synchronized (reconnectLock) {
+            if (reconnectFuture != null) {
+                reconnectFuture.cancel(false);
+                reconnectFuture = null;
+            }
+            reconnectAttempts = 0;
+        }
+    }
+
+    /**
+     * Shuts the connection down for good, no further reconnects will be attempted.
+     */
+    public synchronized void close() {
+        closed = true;
+        resetReconnect();
+        shutdown();
+    }
+
+    public synchronized boolean open() {
         String url = brokerParams.getUrl();
         UrlValidator urlValidator = new UrlValidator();
         if (url != null && urlValidator.isValid(url)) {
+	        setSourceState(AmqpSource.State.CONNECTING, null);
 	        try {
 	            JmsConnectionFactory factory = new JmsConnectionFactory(url);
+	            factory.setConnectTimeout(CONNECT_TIMEOUT);
+	            factory.setPrefetchPolicy(new SourcePrefetchPolicy());
 	            if (brokerParams.getUser().isEmpty() || brokerParams.getPassword().getPlainText().isEmpty()) {
 	                connection = (JmsConnection)factory.createConnection();
 	            } else {
@@ -67,45 +226,40 @@ public class AmqpConnection {
 	            }
 	            connection.setExceptionListener(new MyExceptionListener());
 	            connection.addConnectionListener(ConnectionManager.getInstance());
-	            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+	            reconnectListener = new ReconnectListener();
+	            connection.addConnectionListener(reconnectListener);
 
-	            Queue queue = session.createQueue(brokerParams.getSourceAddr());
-	            messageConsumer = session.createConsumer(queue);
-	            messageConsumer.setMessageListener(new AmqpMessageListener(brokerParams, triggers));
+	            boolean ok = true;
+	            for (AmqpSource source : sources.values()) {
+	                if (!source.open(connection)) {
+	                    ok = false;
+	                }
+	            }
 
 	            connection.start();
 
-	            LOGGER.info("Created listener for broker \"" + brokerParams.toString() + "\" containing " + triggers.size() +
-	                    (triggers.size() == 1 ? " trigger" : " triggers") + " " + triggers.toString());
+	            LOGGER.info("Opened connection to broker \"" + url + "\" with " + sources.size() +
+	                    (sources.size() == 1 ? " source" : " sources"));
+	            return ok;
 	        } catch (JMSException e) {
 	            LOGGER.severe(e.getMessage());
+	            shutdown();
+	            setSourceState(AmqpSource.State.FAILED, e.getMessage());
 	            return false;
 	        }
         } else {
             LOGGER.warning("Invalid Server URL \"" + url + "\", unable to open connection");
+            setSourceState(AmqpSource.State.FAILED, "Invalid server URL");
             return false;
         }
-        return true;
     }
 
-    public void shutdown() {
-        if (messageConsumer != null) {
-            try {
-                messageConsumer.close();
-            } catch (JMSException e) {
-                LOGGER.warning("Cannot close message consumer for broker " + brokerParams.toString() + ". " + e.getMessage());
-            } finally {
-                messageConsumer = null;
-            }
+    public synchronized void shutdown() {
+        for (AmqpSource source : takeRemovedSources()) {
+            source.close();
         }
-        if (session != null) {
-            try {
-                session.close();
-            } catch (JMSException e) {
-                LOGGER.warning("Cannot close session. " + e.getMessage());
-            } finally {
-                session = null;
-            }
+        for (AmqpSource source : sources.values()) {
+            source.close();
         }
         if (connection != null) {
             try {
@@ -114,21 +268,64 @@ public class AmqpConnection {
                 LOGGER.warning("Cannot close connection." + e.getMessage());
             } finally {
                 connection = null;
+                reconnectListener = null;
             }
         }
+    }
 
+    @Override
+    public String toString() {
+        return brokerParams.getUrl();
     }
 
-    protected AmqpMessageListener getMessageListener() {
-        AmqpMessageListener l = null;
-        if (messageConsumer != null) {
-            try {
-                l = (AmqpMessageListener)messageConsumer.getMessageListener();
-            } catch (JMSException e) {
-                LOGGER.warning(e.getMessage());
+    // Gives each consumer the prefetch configured for its source
+    private class SourcePrefetchPolicy implements JmsPrefetchPolicy {
+        @Override
+        public int getConfiguredPrefetch(JmsSession session, JmsDestination destination, boolean durable, boolean browser) {
+            AmqpSource source = destination != null ? sources.get(destination.getAddress()) : null;
+            if (source != null) {
+                return source.getPrefetch();
+            }
+            AmqpBuildTriggerConfiguration config = AmqpBuildTriggerConfiguration.get();
+            return config != null ? config.getDefaultPrefetch() : AmqpBuildTriggerConfiguration.DEFAULT_PREFETCH;
+        }
+
+        @Override
+        public JmsPrefetchPolicy copy() {
+            // Stateless apart from the live source map, so connections may share it
+            return this;
+        }
+    }
+
+    // Drives reconnects from connection events rather than from polling
+    private class ReconnectListener extends JmsDefaultConnectionListener {
+        // Set once the connection has failed for good, it is then shut down and reopened by the next update()
+        private volatile boolean failed = false;
+
+        @Override
+        public void onConnectionFailure(Throwable error) {
+            failed = true;
+            setSourceState(AmqpSource.State.FAILED, error.getMessage());
+            scheduleReconnect();
+        }
+
+        @Override
+        public void onConnectionInterrupted(URI remoteURI) {
+            // With a failover URL the client reconnects by itself, the scheduled update() is a no-op while the
+            // connection is still considered connected
+            setSourceState(AmqpSource.State.CONNECTING, null);
+            scheduleReconnect();
+        }
+
+        @Override
+        public void onConnectionRestored(URI remoteURI) {
+            resetReconnect();
+            for (AmqpSource source : sources.values()) {
+                if (source.isOpen()) {
+                    source.setState(AmqpSource.State.READY);
+                }
             }
         }
-        return l;
     }
 
     private static class MyExceptionListener implements ExceptionListener {
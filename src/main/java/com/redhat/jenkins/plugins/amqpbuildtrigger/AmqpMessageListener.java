@@ -1,47 +1,366 @@
 package com.redhat.jenkins.plugins.amqpbuildtrigger;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
+import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
-import javax.jms.BytesMessage;
 
 public class AmqpMessageListener implements MessageListener {
 
     private static final Logger LOGGER = Logger.getLogger(AmqpBuildTrigger.class.getName());
     private final AmqpBrokerParams brokerParams;
     private final Set<AmqpBuildTrigger> triggers;
+    private final MessageAcknowledger acknowledger;
+    private final String deduplicationProperty;
+    // The source supplies the dead letter producer, which is replaced when the source is reopened
+    private final AmqpSource source;
+    private volatile boolean paused = false;
 
-    public AmqpMessageListener(AmqpBrokerParams brokerParams, Set<AmqpBuildTrigger> triggers) {
-        this.brokerParams = brokerParams;
+    public AmqpMessageListener(AmqpSource source, Set<AmqpBuildTrigger> triggers, MessageAcknowledger acknowledger,
+                               String deduplicationProperty) {
+        this.brokerParams = source.getBrokerParams();
         this.triggers = triggers;
+        this.acknowledger = acknowledger;
+        this.deduplicationProperty = deduplicationProperty;
+        this.source = source;
+    }
+
+    /**
+     * Stops dispatching messages which are only acknowledged once scheduled, as the consumer is about to be closed.
+     * They are left unacknowledged instead, for the server to deliver again.
+     */
+    public void pause() {
+        paused = true;
     }
 
     @Override
-    public void onMessage(Message message) {
-        try {
-            LOGGER.info("Message received on broker " + brokerParams.toString() + "; msg=" + message.toString());
-            for (AmqpBuildTrigger t : triggers) {
+    public void onMessage(final Message message) {
+        // Counted before the check, so that a consumer being retired waits for any message which passed it
+        acknowledger.received(message);
+        if (paused && acknowledger.getMode() == AmqpBrokerParams.AcknowledgeMode.AFTER_SCHEDULED) {
+            acknowledger.released(message);
+            return;
+        }
+        LOGGER.info("Message received on broker " + brokerParams.toString() + "; msg=" + message.toString());
+        final String key = getDeduplicationKey(message);
+        // Only the jobs not already built for the message, if it is delivered again after some of them failed
+        final List<AmqpBuildTrigger> targets = reserve(key, new ArrayList<AmqpBuildTrigger>(triggers));
+        if (targets.isEmpty() && !triggers.isEmpty()) {
+            LOGGER.info("Duplicate message " + key + " ignored");
+            acknowledger.delivered(message);
+            acknowledger.scheduled(message, true);
+            return;
+        }
+        // With a single trigger, entries for parameters the job does not define need not be extracted at all
+        final TriggerMessage triggerMessage = new TriggerMessage(brokerParams.toString(), message,
+                targets.size() == 1 ? targets.get(0).getParameterFilter() : null);
+        // Stale messages are dropped here from the headers alone, before the payload is decoded
+        targets.removeIf(new Predicate<AmqpBuildTrigger>() {
+            @Override
+            public boolean test(AmqpBuildTrigger t) {
+                return t.isStale(triggerMessage);
+            }
+        });
+        if (targets.isEmpty() && !triggers.isEmpty()) {
+            acknowledger.delivered(message);
+            acknowledger.scheduled(message, true);
+            return;
+        }
+        final TriggerJournal.Entry journalEntry = journal(targets, triggerMessage);
+        // Build scheduling happens on the dispatcher threads, not on the JMS delivery thread
+        dispatch(targets, new BiConsumer<AmqpBuildTrigger, Consumer<Boolean>>() {
+            @Override
+            public void accept(AmqpBuildTrigger t, Consumer<Boolean> callback) {
                 LOGGER.info("Remote build triggered: " + t.getProjectName());
-                t.scheduleBuild(brokerParams.toString(), getMessageContent(message));
+                t.scheduleBuild(triggerMessage, callback);
+            }
+        }, new Outcome() {
+            @Override
+            void completed(List<AmqpBuildTrigger> failed) {
+                release(key, failed);
+                // A message which went to the dead letter address is finished with, as much as a scheduled one
+                boolean handled = failed.isEmpty() || deadLetter(Collections.singletonList(message));
+                if (journalEntry != null) {
+                    if (handled) {
+                        TriggerJournal.getInstance().done(journalEntry.getId());
+                    } else {
+                        // Replayed later for the jobs which failed only
+                        TriggerJournal.getInstance().failed(journalEntry, getJobs(failed));
+                    }
+                }
+                acknowledger.scheduled(message, handled);
+            }
+        });
+        acknowledger.delivered(message);
+    }
+
+    /**
+     * Schedules the builds for a batch of messages received together, and waits for them to be scheduled.
+     *
+     * @return true if builds for all messages were scheduled
+     */
+    public boolean onBatch(final List<Message> messages) throws InterruptedException {
+        LOGGER.info("Batch of " + messages.size() + " messages received on broker " + brokerParams.toString());
+        List<AmqpBuildTrigger> all = new ArrayList<AmqpBuildTrigger>(triggers);
+        Predicate<String> filter = all.size() == 1 ? all.get(0).getParameterFilter() : null;
+        // The messages each trigger is to build, and their keys, in the order they were received
+        final Map<AmqpBuildTrigger, Batch> batches = new LinkedHashMap<AmqpBuildTrigger, Batch>();
+        for (Message message : messages) {
+            String key = getDeduplicationKey(message);
+            List<AmqpBuildTrigger> targets = reserve(key, all);
+            if (targets.isEmpty()) {
+                if (!all.isEmpty()) {
+                    LOGGER.info("Duplicate message " + key + " ignored");
+                }
+                continue;
+            }
+            TriggerMessage triggerMessage = new TriggerMessage(brokerParams.toString(), message, filter);
+            for (AmqpBuildTrigger t : targets) {
+                Batch b = batches.get(t);
+                if (b == null) {
+                    b = new Batch();
+                    batches.put(t, b);
+                }
+                b.add(message, key, triggerMessage);
+            }
+        }
+        if (batches.isEmpty()) {
+            return true;
+        }
+        final AtomicBoolean result = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        dispatch(new ArrayList<AmqpBuildTrigger>(batches.keySet()), new BiConsumer<AmqpBuildTrigger, Consumer<Boolean>>() {
+            @Override
+            public void accept(AmqpBuildTrigger t, Consumer<Boolean> callback) {
+                t.scheduleBuilds(batches.get(t).triggerMessages, callback);
             }
-        } catch (Exception e) {
-            LOGGER.warning("Exception thrown in RemoteBuildListener.onMessage(): " + e.getMessage());
+        }, new Outcome() {
+            @Override
+            void completed(List<AmqpBuildTrigger> failed) {
+                // The scheduling of a batch for one job cannot be told apart by message, so all of its messages
+                // are dead lettered, while those the other jobs scheduled are not built again if redelivered
+                Set<Message> failedMessages = new LinkedHashSet<Message>();
+                for (AmqpBuildTrigger t : failed) {
+                    Batch b = batches.get(t);
+                    for (String key : b.keys) {
+                        DeduplicationCache.getInstance().release(key, t.getProjectName());
+                    }
+                    failedMessages.addAll(b.messages);
+                }
+                result.set(failedMessages.isEmpty() || deadLetter(new ArrayList<Message>(failedMessages)));
+                done.countDown();
+            }
+        });
+        done.await();
+        return result.get();
+    }
+
+    /**
+     * Hands the scheduling for each of the triggers to the dispatcher as a task of its own, keyed by its job. The jobs
+     * are scheduled in parallel, while the messages for any one job are scheduled in the order they arrived, since
+     * they are dispatched here on the delivery thread in that order. The action requests the builds of a trigger and
+     * tells the callback the result once they are scheduled, so a dispatch thread does not wait for the Jenkins
+     * queue.
+     */
+    private void dispatch(final List<AmqpBuildTrigger> targets, final BiConsumer<AmqpBuildTrigger, Consumer<Boolean>> action,
+                          final Outcome outcome) {
+        if (targets.isEmpty()) {
+            outcome.completed(Collections.<AmqpBuildTrigger>emptyList());
+            return;
+        }
+        outcome.expect(targets.size());
+        for (AmqpBuildTrigger t : targets) {
+            dispatch(t, action, outcome, 0);
         }
     }
-    // method if message is a BytesMessage, then convert it to a String
-    private String getMessageContent(Message message) {
-        if (message instanceof BytesMessage) {
-            try {
-                BytesMessage bytesMessage = (BytesMessage) message;
-                byte[] bytes = new byte[(int) bytesMessage.getBodyLength()];
-                bytesMessage.readBytes(bytes);
-                return new String(bytes, "UTF-8");
-            } catch (Exception e) {
-                LOGGER.warning("Exception thrown in RemoteBuildListener.getMessageContent(): " + e.getMessage());
+
+    /**
+     * Dispatches one attempt at scheduling a trigger. If it fails, it is retried with backoff until the attempts are
+     * exhausted. A retry goes to the back of the job's queue, so it may be overtaken by later messages.
+     */
+    private void dispatch(final AmqpBuildTrigger t, final BiConsumer<AmqpBuildTrigger, Consumer<Boolean>> action,
+                          final Outcome outcome, final int attempt) {
+        TriggerDispatcher.getInstance().dispatch(t.getProjectName(), new Runnable() {
+            @Override
+            public void run() {
+                schedule(t, action, new Consumer<Boolean>() {
+                    @Override
+                    public void accept(Boolean scheduled) {
+                        if (scheduled) {
+                            outcome.done(t, true);
+                            return;
+                        }
+                        boolean retrying = RetryPolicy.getInstance().retry(new Runnable() {
+                            @Override
+                            public void run() {
+                                dispatch(t, action, outcome, attempt + 1);
+                            }
+                        }, attempt);
+                        if (!retrying) {
+                            outcome.done(t, false);
+                        }
+                    }
+                });
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                outcome.done(t, false);
             }
+        });
+    }
+
+    /**
+     * @return true if the messages were sent to the dead letter address
+     */
+    private boolean deadLetter(List<Message> messages) {
+        DeadLetterProducer producer = source.getDeadLetterProducer();
+        return producer != null && producer.send(messages);
+    }
+
+    /**
+     * Records the message in the journal before it is acknowledged, unless it is only acknowledged once its builds
+     * are scheduled anyway. The parameters are extracted now, as the message is gone once the journal is replayed.
+     *
+     * @return the journal entry, or {@code null} if the message was not journaled
+     */
+    private TriggerJournal.Entry journal(List<AmqpBuildTrigger> targets, TriggerMessage triggerMessage) {
+        TriggerJournal journal = TriggerJournal.getInstance();
+        if (targets.isEmpty() || acknowledger.isAfterScheduling() || !journal.isEnabled()) {
+            return null;
+        }
+        boolean body = false;
+        boolean properties = false;
+        for (AmqpBuildTrigger t : targets) {
+            body |= t.getParameterSource() != AmqpBuildTrigger.ParameterSource.PROPERTIES;
+            properties |= t.getParameterSource() != AmqpBuildTrigger.ParameterSource.BODY;
+        }
+        TriggerJournal.Entry entry = new TriggerJournal.Entry(brokerParams.toString(), triggerMessage.getTimestamp(),
+                triggerMessage.getExpiration(), getJobs(targets),
+                body ? triggerMessage.getParameters() : null,
+                properties ? triggerMessage.getPropertyParameters() : null);
+        return journal.accept(entry) != 0 ? entry : null;
+    }
+
+    /**
+     * Reserves the triggers of a message for deduplication.
+     *
+     * @return the triggers whose jobs were not already reserved for the message
+     */
+    private static List<AmqpBuildTrigger> reserve(String key, List<AmqpBuildTrigger> targets) {
+        List<String> reserved = DeduplicationCache.getInstance().reserve(key, getJobs(targets));
+        if (reserved.size() == targets.size()) {
+            return targets;
+        }
+        List<AmqpBuildTrigger> result = new ArrayList<AmqpBuildTrigger>(reserved.size());
+        for (AmqpBuildTrigger t : targets) {
+            if (reserved.contains(t.getProjectName())) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    private static void release(String key, List<AmqpBuildTrigger> failed) {
+        for (AmqpBuildTrigger t : failed) {
+            DeduplicationCache.getInstance().release(key, t.getProjectName());
+        }
+    }
+
+    private static List<String> getJobs(List<AmqpBuildTrigger> triggers) {
+        List<String> jobs = new ArrayList<String>(triggers.size());
+        for (AmqpBuildTrigger t : triggers) {
+            jobs.add(t.getProjectName());
+        }
+        return jobs;
+    }
+
+    /**
+     * @return the key identifying the message for deduplication, or {@code null} if it cannot be identified
+     */
+    private String getDeduplicationKey(Message message) {
+        if (!DeduplicationCache.getInstance().isEnabled()) {
+            return null;
+        }
+        try {
+            Object id = deduplicationProperty != null ? message.getObjectProperty(deduplicationProperty) : message.getJMSMessageID();
+            return id != null ? brokerParams.toString() + "|" + id : null;
+        } catch (JMSException e) {
+            LOGGER.warning("Cannot read deduplication key of message. " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void schedule(AmqpBuildTrigger t, BiConsumer<AmqpBuildTrigger, Consumer<Boolean>> action, Consumer<Boolean> callback) {
+        try {
+            action.accept(t, callback);
+        } catch (RuntimeException e) {
+            LOGGER.warning("Exception thrown while scheduling build of " + t.getProjectName() + ": " + e.getMessage());
+            callback.accept(false);
+        }
+    }
+
+    /**
+     * Collects the results of the dispatches for one message or batch, by trigger. The results arrive on the thread
+     * which schedules the builds of every job, so the message is completed on the connect threads instead: that
+     * acknowledges it, and may send it to the dead letter address and write the journal, all of which can wait for
+     * the broker or the disk.
+     */
+    private abstract static class Outcome {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final List<AmqpBuildTrigger> failed = Collections.synchronizedList(new ArrayList<AmqpBuildTrigger>());
+
+        void expect(int count) {
+            remaining.set(count);
+        }
+
+        void done(AmqpBuildTrigger t, boolean result) {
+            if (!result) {
+                failed.add(t);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                final List<AmqpBuildTrigger> result = new ArrayList<AmqpBuildTrigger>(failed);
+                ConnectionManager.getInstance().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completed(result);
+                    }
+                });
+            }
+        }
+
+        /**
+         * @param failed the triggers whose builds could not be scheduled
+         */
+        abstract void completed(List<AmqpBuildTrigger> failed);
+    }
+
+    /**
+     * The messages of a batch which one trigger is to build.
+     */
+    private static class Batch {
+        private final List<Message> messages = new ArrayList<Message>();
+        private final List<String> keys = new ArrayList<String>();
+        private final List<TriggerMessage> triggerMessages = new ArrayList<TriggerMessage>();
+
+        void add(Message message, String key, TriggerMessage triggerMessage) {
+            messages.add(message);
+            keys.add(key);
+            triggerMessages.add(triggerMessage);
         }
-        return message.toString();
     }
 }
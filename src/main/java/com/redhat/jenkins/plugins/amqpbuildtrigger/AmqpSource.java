@@ -0,0 +1,419 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.logging.Logger;
+import java.util.Set;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import com.redhat.jenkins.plugins.amqpbuildtrigger.AmqpBrokerParams.AcknowledgeMode;
+
+/**
+ * A single source address on an {@link AmqpConnection}. Each source has one or more competing consumers, each with a
+ * session of its own, and delivers every message it receives to all of its triggers.
+ */
+public class AmqpSource {
+    private static final Logger LOGGER = Logger.getLogger(AmqpSource.class.getName());
+
+    public enum State {
+        /** Not yet opened */
+        PENDING,
+        /** Waiting for the connection to be established or restored */
+        CONNECTING,
+        /** Receiving messages */
+        READY,
+        /** The connection or the consumer could not be opened, a reconnect is scheduled */
+        FAILED
+    }
+
+    private final Set<AmqpBuildTrigger> triggers = new CopyOnWriteArraySet<AmqpBuildTrigger>();
+    // The params each trigger configured this source with, which supply its consumer settings
+    private final Map<AmqpBuildTrigger, AmqpBrokerParams> triggerParams = new ConcurrentHashMap<AmqpBuildTrigger, AmqpBrokerParams>();
+    private final AmqpBrokerParams brokerParams;
+    private final List<SourceConsumer> consumers = new ArrayList<SourceConsumer>();
+    // Consumers replaced or removed, which close once the messages they delivered are settled
+    private final List<SourceConsumer> retiring = new ArrayList<SourceConsumer>();
+    // Read by the listeners of every consumer, including those retiring, whenever they dead letter a message
+    private volatile DeadLetterProducer deadLetterProducer = null;
+    private String openedSettings = null;
+    private volatile State state = State.PENDING;
+    private volatile String error = null;
+
+    public AmqpSource(AmqpBrokerParams brokerParams) {
+        this.brokerParams = brokerParams;
+    }
+
+    public String getSourceAddr() {
+        return brokerParams.getSourceAddr();
+    }
+
+    public AmqpBrokerParams getBrokerParams() {
+        return brokerParams;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the reason for the last failure, if the source is {@link State#FAILED}
+     */
+    public String getError() {
+        return error;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+        if (state != State.FAILED) {
+            this.error = null;
+        }
+    }
+
+    public void setFailed(String error) {
+        this.error = error;
+        this.state = State.FAILED;
+    }
+
+    public boolean addBuildTrigger(AmqpBrokerParams params, AmqpBuildTrigger trigger) {
+        if (trigger != null) {
+            triggerParams.put(trigger, params);
+            return triggers.add(trigger);
+        }
+        return false;
+    }
+
+    public boolean removeBuildTrigger(AmqpBuildTrigger trigger) {
+        if (trigger != null) {
+            triggerParams.remove(trigger);
+            return triggers.remove(trigger);
+        }
+        return false;
+    }
+
+    /**
+     * The consumer prefetch for this source, as configured and then scaled by the {@link PrefetchController}.
+     */
+    public int getPrefetch() {
+        return PrefetchController.scale(getConfiguredPrefetch());
+    }
+
+    /**
+     * The configured consumer prefetch for this source. If the jobs sharing the source set different values, the
+     * smallest is used. If none sets a value, the global default is used.
+     */
+    public int getConfiguredPrefetch() {
+        int prefetch = Integer.MAX_VALUE;
+        for (AmqpBrokerParams p : triggerParams.values()) {
+            if (p.getPrefetch() != null) {
+                prefetch = Math.min(prefetch, p.getPrefetch());
+            }
+        }
+        if (prefetch == Integer.MAX_VALUE) {
+            AmqpBuildTriggerConfiguration config = AmqpBuildTriggerConfiguration.get();
+            prefetch = config != null ? config.getDefaultPrefetch() : AmqpBuildTriggerConfiguration.DEFAULT_PREFETCH;
+        }
+        return prefetch;
+    }
+
+    /**
+     * The acknowledge mode for this source. If the jobs sharing the source choose different modes,
+     * {@link AcknowledgeMode#AFTER_SCHEDULED} is used if any job chose it, otherwise {@link AcknowledgeMode#AUTO}.
+     */
+    public AcknowledgeMode getAckMode() {
+        AcknowledgeMode mode = null;
+        for (AmqpBrokerParams p : triggerParams.values()) {
+            AcknowledgeMode m = p.getAckMode() != null ? p.getAckMode() : AcknowledgeMode.AUTO;
+            if (m == AcknowledgeMode.AFTER_SCHEDULED) {
+                return m;
+            }
+            mode = mode == null || mode == m ? m : AcknowledgeMode.AUTO;
+        }
+        return mode != null ? mode : AcknowledgeMode.AUTO;
+    }
+
+    /**
+     * The ack batch size for this source, the smallest set by the jobs sharing it.
+     */
+    public int getAckBatchSize() {
+        int size = Integer.MAX_VALUE;
+        for (AmqpBrokerParams p : triggerParams.values()) {
+            if (p.getAckBatchSize() != null) {
+                size = Math.min(size, p.getAckBatchSize());
+            }
+        }
+        return size != Integer.MAX_VALUE ? size : AmqpBrokerParams.DEFAULT_ACK_BATCH_SIZE;
+    }
+
+    /**
+     * The ack batch time for this source, the smallest set by the jobs sharing it.
+     */
+    public int getAckBatchTime() {
+        int time = Integer.MAX_VALUE;
+        for (AmqpBrokerParams p : triggerParams.values()) {
+            if (p.getAckBatchTime() != null) {
+                time = Math.min(time, p.getAckBatchTime());
+            }
+        }
+        return time != Integer.MAX_VALUE ? time : AmqpBrokerParams.DEFAULT_ACK_BATCH_TIME;
+    }
+
+    /**
+     * The number of consumers for this source, the largest set by the jobs sharing it.
+     */
+    public int getConsumerCount() {
+        int count = 1;
+        for (AmqpBrokerParams p : triggerParams.values()) {
+            if (p.getConsumers() != null) {
+                count = Math.max(count, p.getConsumers());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The message property identifying duplicate messages on this source. If the jobs sharing the source set
+     * different properties, the first in alphabetical order is used.
+     */
+    public String getDeduplicationProperty() {
+        String property = null;
+        for (AmqpBrokerParams p : triggerParams.values()) {
+            String d = p.getDeduplicationProperty();
+            if (d != null && (property == null || d.compareTo(property) < 0)) {
+                property = d;
+            }
+        }
+        return property;
+    }
+
+    /**
+     * The dead letter address for this source. If the jobs sharing the source set different addresses, the first in
+     * alphabetical order is used.
+     */
+    public String getDeadLetterAddr() {
+        String addr = null;
+        for (AmqpBrokerParams p : triggerParams.values()) {
+            String d = p.getDeadLetterAddr();
+            if (d != null && (addr == null || d.compareTo(addr) < 0)) {
+                addr = d;
+            }
+        }
+        return addr;
+    }
+
+    /**
+     * @return the producer for the dead letter address, {@code null} if there is none
+     */
+    public DeadLetterProducer getDeadLetterProducer() {
+        return deadLetterProducer;
+    }
+
+    private String getSettings() {
+        return "prefetch " + getPrefetch() + ", " + getAckMode() + " acknowledge, batch " + getAckBatchSize() + "/" +
+                getAckBatchTime() + "ms, " + getConsumerCount() + (getConsumerCount() == 1 ? " consumer" : " consumers") +
+                (getDeduplicationProperty() != null ? ", deduplicated by " + getDeduplicationProperty() : "") +
+                (getDeadLetterAddr() != null ? ", dead letters to " + getDeadLetterAddr() : "");
+    }
+
+    /**
+     * @return true if the consumers are open with settings that no longer match the configuration
+     */
+    public synchronized boolean isStale() {
+        return !consumers.isEmpty() && !getSettings().equals(openedSettings);
+    }
+
+    public boolean isEmpty() {
+        return triggers.isEmpty();
+    }
+
+    public synchronized boolean isOpen() {
+        return !consumers.isEmpty();
+    }
+
+    public synchronized boolean open(Connection connection) {
+        if (!consumers.isEmpty()) {
+            return true;
+        }
+        if (!brokerParams.isValid()) {
+            // Reconnecting would not help, the source stays failed until its configuration is fixed
+            setFailed("Invalid source parameters");
+            return true;
+        }
+        try {
+            // The prefetch is read by the connection's prefetch policy when each consumer is created
+            openedSettings = getSettings();
+            // Replaces the producer of consumers which are retiring, they use this one from now on
+            String deadLetterAddr = getDeadLetterAddr();
+            DeadLetterProducer old = deadLetterProducer;
+            deadLetterProducer = deadLetterAddr != null ? new DeadLetterProducer(connection, deadLetterAddr) : null;
+            if (old != null) {
+                old.close();
+            }
+            int count = getConsumerCount();
+            for (int i = 0; i < count; i++) {
+                SourceConsumer c = new SourceConsumer();
+                consumers.add(c);
+                c.open(connection, i);
+            }
+
+            setState(State.READY);
+            LOGGER.info("Created listener for source \"" + brokerParams.toString() + "\" containing " + triggers.size() +
+                    (triggers.size() == 1 ? " trigger" : " triggers") + " " + triggers.toString() + ", " + openedSettings);
+        } catch (JMSException e) {
+            LOGGER.severe(e.getMessage());
+            close();
+            setFailed(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the consumers receiving, so that they can be replaced by {@link #open(Connection)} or dropped when the
+     * source is removed. Unlike {@link #close()}, a consumer is only closed once the builds for the messages it
+     * delivered are scheduled, so that they are neither delivered again nor lose their acknowledgement.
+     */
+    public synchronized void retire() {
+        List<SourceConsumer> list = new ArrayList<SourceConsumer>(consumers);
+        consumers.clear();
+        retiring.addAll(list);
+        for (SourceConsumer c : list) {
+            c.retire();
+        }
+        closeUnusedDeadLetterProducer();
+    }
+
+    private synchronized void retired(SourceConsumer c) {
+        retiring.remove(c);
+        closeUnusedDeadLetterProducer();
+    }
+
+    // Once the source has been removed and the last of its consumers is closed
+    private void closeUnusedDeadLetterProducer() {
+        if (triggers.isEmpty() && consumers.isEmpty() && retiring.isEmpty() && deadLetterProducer != null) {
+            deadLetterProducer.close();
+            deadLetterProducer = null;
+        }
+    }
+
+    /**
+     * Closes the consumers at once, including those retiring, as when the connection itself is closed.
+     */
+    public synchronized void close() {
+        for (SourceConsumer c : consumers) {
+            c.close();
+        }
+        consumers.clear();
+        for (SourceConsumer c : retiring) {
+            c.close();
+        }
+        retiring.clear();
+        if (deadLetterProducer != null) {
+            deadLetterProducer.close();
+            deadLetterProducer = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return brokerParams.toString();
+    }
+
+    /**
+     * One of the competing consumers of a source, with a session of its own.
+     */
+    private class SourceConsumer {
+        private Session session = null;
+        private MessageConsumer messageConsumer = null;
+        private MessageAcknowledger acknowledger = null;
+        private AmqpMessageListener listener = null;
+        private BatchReceiver batchReceiver = null;
+
+        void open(Connection connection, int index) throws JMSException {
+            acknowledger = new MessageAcknowledger(getAckMode(), getAckBatchSize(), getAckBatchTime());
+            boolean transacted = acknowledger.getMode() == AcknowledgeMode.TRANSACTED_BATCH;
+            session = connection.createSession(transacted, acknowledger.getSessionMode());
+            Queue queue = session.createQueue(brokerParams.getSourceAddr());
+            messageConsumer = session.createConsumer(queue);
+            listener = new AmqpMessageListener(AmqpSource.this, triggers, acknowledger, getDeduplicationProperty());
+            if (transacted) {
+                // Transacted batches are received on a thread of their own rather than by a listener
+                batchReceiver = new BatchReceiver(session, messageConsumer, listener, getAckBatchSize(), getAckBatchTime());
+                new NamingThreadFactory(new DaemonThreadFactory(), "AmqpBuildTrigger.batch " + brokerParams.toString() + " #" + index)
+                        .newThread(batchReceiver).start();
+            } else {
+                messageConsumer.setMessageListener(listener);
+            }
+        }
+
+        /**
+         * Stops delivery to the listener, and closes the consumer once every message it delivered is settled. Messages
+         * the consumer has prefetched but not delivered are released to the server when it closes.
+         */
+        void retire() {
+            final Runnable closer = new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                    retired(SourceConsumer.this);
+                }
+            };
+            if (batchReceiver != null) {
+                batchReceiver.retire(closer);
+                return;
+            }
+            listener.pause();
+            try {
+                messageConsumer.setMessageListener(null);
+            } catch (JMSException e) {
+                LOGGER.warning("Cannot stop delivery for source " + brokerParams.toString() + ". " + e.getMessage());
+            }
+            acknowledger.whenSettled(new Runnable() {
+                @Override
+                public void run() {
+                    // The last message may be settled on a dispatch thread, which must not wait for the broker
+                    ConnectionManager.getInstance().execute(closer);
+                }
+            });
+        }
+
+        synchronized void close() {
+            if (batchReceiver != null) {
+                batchReceiver.close();
+                batchReceiver = null;
+            }
+            if (acknowledger != null) {
+                // Avoid redelivery of messages which were already dispatched
+                acknowledger.flush();
+            }
+            if (messageConsumer != null) {
+                try {
+                    messageConsumer.close();
+                } catch (JMSException e) {
+                    LOGGER.warning("Cannot close message consumer for source " + brokerParams.toString() + ". " + e.getMessage());
+                } finally {
+                    messageConsumer = null;
+                }
+            }
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (JMSException e) {
+                    LOGGER.warning("Cannot close session. " + e.getMessage());
+                } finally {
+                    session = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * Receives messages on a transacted session in batches of up to a number of messages or a time, whichever comes
+ * first. Each batch is scheduled as a whole and committed once, or rolled back for redelivery if scheduling fails.
+ */
+public class BatchReceiver implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(BatchReceiver.class.getName());
+    private static final long POLL_TIME = 1000; // ms, ie 1 sec
+    private static final long ERROR_DELAY = 1000; // ms, ie 1 sec
+
+    private final Session session;
+    private final MessageConsumer consumer;
+    private final AmqpMessageListener listener;
+    private final int batchSize;
+    private final long batchTime;
+    private volatile boolean closed = false;
+    // Run on the receiving thread once it stops, guarded by this
+    private Runnable onExit = null;
+    private boolean exited = false;
+
+    public BatchReceiver(Session session, MessageConsumer consumer, AmqpMessageListener listener, int batchSize, long batchTime) {
+        this.session = session;
+        this.consumer = consumer;
+        this.listener = listener;
+        this.batchSize = batchSize;
+        this.batchTime = batchTime;
+    }
+
+    /**
+     * Stops receiving. The batch in progress, if any, is rolled back when the session closes.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Stops receiving once the batch in progress has been scheduled and committed, and then runs a task on the
+     * receiving thread. A batch which has not started to be scheduled is rolled back when the session closes.
+     */
+    public void retire(Runnable task) {
+        boolean run;
+        synchronized (this) {
+            closed = true;
+            onExit = task;
+            run = exited;
+        }
+        if (run) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Message> batch = new ArrayList<Message>(batchSize);
+        while (!closed) {
+            try {
+                Message first = consumer.receive(POLL_TIME);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + batchTime;
+                while (batch.size() < batchSize && !closed) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Message next = remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                if (closed) {
+                    break;
+                }
+                if (listener.onBatch(batch)) {
+                    session.commit();
+                } else {
+                    LOGGER.warning("Rolling back batch of " + batch.size() + " messages for redelivery");
+                    session.rollback();
+                }
+            } catch (IllegalStateException e) {
+                // The consumer or its connection was closed
+                break;
+            } catch (JMSException e) {
+                LOGGER.warning("Cannot receive batch of messages. " + e.getMessage());
+                rollback();
+                try {
+                    Thread.sleep(ERROR_DELAY);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        Runnable task;
+        synchronized (this) {
+            exited = true;
+            task = onExit;
+        }
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    private void rollback() {
+        try {
+            session.rollback();
+        } catch (JMSException e) {
+            LOGGER.warning("Cannot roll back batch of messages. " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.ParameterizedJobMixIn;
+
+/**
+ * Submits builds to the Jenkins queue in bulk. Requests are collected without blocking their callers, and a single
+ * thread schedules all requests pending at the time within one {@link Queue#withLock(Runnable)} section, rather than
+ * each acquiring the queue lock on its own. Requests made while it holds the lock go in the next section, so the
+ * builds for a message triggering many jobs are scheduled together. Requests are scheduled in the order they are
+ * made, and the caller is told the result through a callback.
+ */
+public class BulkScheduler {
+    private static final Logger LOGGER = Logger.getLogger(BulkScheduler.class.getName());
+    // Upper bound on the builds scheduled in one hold of the queue lock, to keep it short
+    private static final int MAX_BATCH = 500;
+
+    private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<Request>();
+    // Set while the scheduling thread has been asked to drain the pending requests
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private static class InstanceHolder {
+        private static final BulkScheduler INSTANCE = new BulkScheduler();
+    }
+
+    public static BulkScheduler getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public BulkScheduler() {
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "AmqpBuildTrigger.schedule"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Requests a build of a job, and returns without waiting for it to be scheduled.
+     *
+     * @param callback told true once the build is in the queue, or false if the job did not accept it. It is called
+     *                 on the scheduling thread, outside the queue lock, and must not block.
+     */
+    public void schedule(Job<?, ?> job, Consumer<Boolean> callback, Action... actions) {
+        pending.add(new Request(job, actions, callback));
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drainAll();
+                }
+            });
+        }
+    }
+
+    private void drainAll() {
+        while (true) {
+            drain();
+            if (pending.isEmpty()) {
+                draining.set(false);
+                // A request added before the flag was cleared found it set, so it is drained here
+                if (pending.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        final List<Request> batch = new ArrayList<Request>();
+        Request r;
+        while (batch.size() < MAX_BATCH && (r = pending.poll()) != null) {
+            batch.add(r);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batchCount.incrementAndGet();
+        requestCount.addAndGet(batch.size());
+        try {
+            Queue.withLock(new Runnable() {
+                @Override
+                public void run() {
+                    for (Request r : batch) {
+                        try {
+                            r.scheduled = ParameterizedJobMixIn.scheduleBuild2(r.job, 0, r.actions) != null;
+                            if (!r.scheduled) {
+                                LOGGER.warning("Build of " + r.job.getFullName() + " was not accepted by the queue");
+                            }
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Exception thrown while scheduling build of " + r.job.getFullName(), e);
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Requests not reached are reported as not scheduled
+            LOGGER.log(Level.WARNING, "Exception thrown while scheduling " + batch.size() + " builds", e);
+        }
+        for (Request req : batch) {
+            try {
+                req.callback.accept(req.scheduled);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Exception thrown after scheduling build of " + req.job.getFullName(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of times the queue lock was taken to schedule builds
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return the number of builds submitted to the queue
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    private static class Request {
+        private final Job<?, ?> job;
+        private final Action[] actions;
+        private final Consumer<Boolean> callback;
+        // Written under the queue lock, read by the same thread after it
+        private boolean scheduled = false;
+
+        Request(Job<?, ?> job, Action[] actions, Consumer<Boolean> callback) {
+            this.job = job;
+            this.actions = actions;
+            this.callback = callback;
+        }
+    }
+}
@@ -1,12 +1,24 @@
 package com.redhat.jenkins.plugins.amqpbuildtrigger;
 
-import hudson.model.Project;
-import hudson.triggers.Trigger;
-import hudson.triggers.TriggerDescriptor;
+import hudson.model.Item;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 
 import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Map;
 
@@ -19,12 +31,18 @@ import jenkins.model.Jenkins;
 import org.apache.qpid.jms.JmsConnectionListener;
 import org.apache.qpid.jms.message.JmsInboundMessageDispatch;
 
-import org.jenkinsci.plugins.workflow.job.WorkflowJob;
-
 public class ConnectionManager implements JmsConnectionListener {
 
     private static final Logger LOGGER = Logger.getLogger(ConnectionManager.class.getName());
+    private static final int CONNECT_THREADS = 8;
+    private static final long CONNECT_GRACE_TIME = 5000; // ms, ie 5 sec
     private Map<String, AmqpConnection> connectionMap;
+    // Triggers currently registered with a connection
+    private final TriggerIndex triggerIndex;
+    private volatile long discoveryDuration = 0;
+    private volatile boolean started = false;
+    // Opens connections concurrently, so one unreachable broker does not hold up the others
+    private final ExecutorService connectExecutor;
 
     private static class InstanceHolder {
         private static final ConnectionManager INSTANCE = new ConnectionManager();
@@ -36,67 +54,252 @@ public class ConnectionManager implements JmsConnectionListener {
 
     public ConnectionManager() {
         connectionMap = new ConcurrentHashMap<String, AmqpConnection>();
+        triggerIndex = new TriggerIndex();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "AmqpBuildTrigger.connect"));
+        executor.allowCoreThreadTimeOut(true);
+        connectExecutor = executor;
     }
 
     protected void addBuildTrigger(AmqpBuildTrigger trigger) {
         List<AmqpBrokerParams> brokerParamsList = trigger.getAmqpBrokerParamsList();
         if (brokerParamsList != null && !brokerParamsList.isEmpty()) {
             for (AmqpBrokerParams url: brokerParamsList) {
-                if (connectionMap.containsKey(url.toString())) {
-                    // Add trigger to existing connection
-                    if (!connectionMap.get(url.toString()).addBuildTrigger(trigger)) {
-                        LOGGER.warning("ConnectionManager.addBuildTrigger(): failed to add trigger " + trigger.getProjectName() + " to existing connection");
-                    }
-                } else {
-                    // Create new connection
-                    AmqpConnection c = new AmqpConnection(url);
-                    if (!c.addBuildTrigger(trigger)) {
-                        LOGGER.warning("ConnectionManager.addBuildTrigger(): failed to add trigger " + trigger.getProjectName() + " to new connection");
-                    }
-                    connectionMap.put(url.toString(), c);
+                if (!getConnection(url).addBuildTrigger(url, trigger)) {
+                    LOGGER.warning("ConnectionManager.addBuildTrigger(): failed to add trigger " + trigger.getProjectName() + " to source " + url.toString());
                 }
             }
+            triggerIndex.put(trigger.getProjectName(), trigger);
+        }
+    }
+
+    public TriggerIndex getTriggerIndex() {
+        return triggerIndex;
+    }
+
+    /**
+     * @return the time taken by the last trigger discovery in ms
+     */
+    public long getDiscoveryDuration() {
+        return discoveryDuration;
+    }
+
+    // Returns the shared connection for the endpoint of these params, creating it if needed
+    private AmqpConnection getConnection(AmqpBrokerParams params) {
+        AmqpConnection c = connectionMap.get(params.getConnectionKey());
+        if (c == null) {
+            c = new AmqpConnection(params);
+            connectionMap.put(params.getConnectionKey(), c);
         }
+        return c;
     }
 
     public void initialize() {
-        shutdown();
-        connectionMap.clear();
-
-        Jenkins jenkins = Jenkins.getInstance();
-        if (jenkins != null) {
-            // Find triggers for freestyle jobs
-            for (Project<?, ?> p : jenkins.getAllItems(Project.class)) {
-                AmqpBuildTrigger t = p.getTrigger(AmqpBuildTrigger.class);
-                if (t != null) {
+        synchronized (this) {
+            shutdown();
+            connectionMap.clear();
+            triggerIndex.clear();
+
+            Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins != null) {
+                TriggerDiscovery discovery = new TriggerDiscovery().run(jenkins);
+                discoveryDuration = discovery.getDuration();
+                for (AmqpBuildTrigger t : discovery.getTriggers().values()) {
                     addBuildTrigger(t);
                 }
-            }
-           // Find triggers for Pipelines/workflow jobs
-            for (WorkflowJob j : jenkins.getAllItems(WorkflowJob.class)) {
-                Map<TriggerDescriptor, Trigger<?>> m = j.getTriggers();
-                for (Map.Entry<TriggerDescriptor, Trigger<?>> entry: m.entrySet()) {
-                    if (entry.getKey() instanceof AmqpBuildTrigger.AmqpBuildTriggerDescriptor) {
-                        AmqpBuildTrigger t = (AmqpBuildTrigger) entry.getValue();
-                        if (t != null) {
-                            addBuildTrigger(t);
-                        }
-                    }
+                // Before any connection opens, so that journaled messages are scheduled ahead of new ones
+                TriggerJournal journal = TriggerJournal.getInstance();
+                if (journal.isEnabled()) {
+                    journal.replay(triggerIndex);
                 }
             }
         }
+        // Item updates need not wait for connections to open
         update();
+        started = true;
+    }
+
+    /**
+     * Replays the messages pending in the journal, once the triggers are known.
+     */
+    public void replayJournal() {
+        TriggerJournal journal = TriggerJournal.getInstance();
+        if (started && journal.isEnabled()) {
+            journal.replay(triggerIndex);
+        }
+    }
+
+    /**
+     * Runs {@link #initialize()} on a background thread, so that Jenkins does not wait for trigger discovery or
+     * for brokers while loading. Sources come online as their connections open, see {@link AmqpSource#getState()}.
+     */
+    public void initializeAsync() {
+        started = false;
+        new NamingThreadFactory(new DaemonThreadFactory(), "AmqpBuildTrigger.bootstrap").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    initialize();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Cannot start AMQP Build Trigger", e);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * @return true once startup has discovered all triggers and made a first attempt at opening every connection
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    public Collection<AmqpConnection> getConnections() {
+        return Collections.unmodifiableCollection(connectionMap.values());
+    }
+
+    /**
+     * Brings the connections in line with the current trigger configuration of a single item. Only connections
+     * whose source was added to or removed from the item are opened or shut down, all others are left untouched.
+     * Connections are opened and closed in the background, so this never waits for a broker.
+     */
+    public synchronized void updateItem(Item item) {
+        AmqpBuildTrigger oldTrigger = triggerIndex.get(item.getFullName());
+        AmqpBuildTrigger newTrigger = TriggerDiscovery.getBuildTrigger(item);
+        if (oldTrigger == null && newTrigger == null) {
+            return;
+        }
+        Map<String, AmqpBrokerParams> oldParams = TriggerIndex.getSources(oldTrigger);
+        Map<String, AmqpBrokerParams> newParams = TriggerIndex.getSources(newTrigger);
+
+        // Sources no longer used by this item
+        for (Map.Entry<String, AmqpBrokerParams> e : oldParams.entrySet()) {
+            if (!newParams.containsKey(e.getKey())) {
+                removeBuildTrigger(e.getValue(), oldTrigger);
+            }
+        }
+        // Sources kept or added by this item
+        for (Map.Entry<String, AmqpBrokerParams> e : newParams.entrySet()) {
+            AmqpConnection c = getConnection(e.getValue());
+            if (!c.addBuildTrigger(e.getValue(), newTrigger) && newTrigger != oldTrigger) {
+                LOGGER.warning("ConnectionManager.updateItem(): failed to add trigger " + newTrigger.getProjectName() + " to source " + e.getValue().toString());
+            }
+            if (oldTrigger != null && oldTrigger != newTrigger) {
+                c.removeBuildTrigger(e.getValue().getSourceAddr(), oldTrigger);
+            }
+            updateAsync(c);
+        }
+
+        if (newTrigger != null) {
+            newTrigger.invalidateParameterMapping();
+            triggerIndex.put(item.getFullName(), newTrigger);
+        } else {
+            triggerIndex.remove(item.getFullName());
+        }
+    }
+
+    /**
+     * Removes the triggers of an item and of all items contained in it.
+     */
+    public synchronized void removeItem(Item item) {
+        for (AmqpBuildTrigger t : triggerIndex.removeAll(item.getFullName()).values()) {
+            for (AmqpBrokerParams params : TriggerIndex.getSources(t).values()) {
+                removeBuildTrigger(params, t);
+            }
+        }
+    }
+
+    /**
+     * Re-keys the triggers of an item (and of the items it contains) after a rename or move. The triggers themselves
+     * refer to their job, so connections are not affected.
+     */
+    public synchronized void renameItem(String oldFullName, String newFullName) {
+        triggerIndex.rename(oldFullName, newFullName);
+    }
+
+    private void removeBuildTrigger(AmqpBrokerParams params, AmqpBuildTrigger trigger) {
+        AmqpConnection c = connectionMap.get(params.getConnectionKey());
+        if (c != null) {
+            c.removeBuildTrigger(params.getSourceAddr(), trigger);
+            if (c.isEmpty()) {
+                connectionMap.remove(params.getConnectionKey());
+                closeAsync(c);
+            } else {
+                // The remaining triggers may call for different consumer settings
+                updateAsync(c);
+            }
+        }
     }
 
+    /**
+     * Updates all connections concurrently. Waits at most for the connect timeout of a single connection, any
+     * connection still opening after that keeps going in the background and schedules its own reconnect if it fails.
+     */
     public void update() {
+        Map<AmqpConnection, Future<?>> futures = new LinkedHashMap<AmqpConnection, Future<?>>();
         for (Map.Entry<String, AmqpConnection> c: connectionMap.entrySet()) {
-            c.getValue().update();
+            futures.put(c.getValue(), updateAsync(c.getValue()));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AmqpConnection.CONNECT_TIMEOUT + CONNECT_GRACE_TIME);
+        for (Map.Entry<AmqpConnection, Future<?>> f : futures.entrySet()) {
+            try {
+                f.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                LOGGER.warning("Connection to broker \"" + f.getKey().toString() + "\" still opening, continuing in background");
+            } catch (ExecutionException e) {
+                LOGGER.warning("Cannot update connection to broker \"" + f.getKey().toString() + "\". " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
+    /**
+     * Updates all connections in the background.
+     */
+    public void updateAsync() {
+        for (AmqpConnection c : connectionMap.values()) {
+            updateAsync(c);
+        }
+    }
+
+    /**
+     * Updates a connection on the connect threads.
+     */
+    Future<?> updateAsync(final AmqpConnection c) {
+        return connectExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                c.update();
+            }
+        });
+    }
+
+    /**
+     * Runs a task which talks to a broker on the connect threads.
+     */
+    void execute(Runnable task) {
+        connectExecutor.execute(task);
+    }
+
+    /**
+     * Closes a connection on the connect threads, so that the caller does not wait for the broker, nor for an
+     * update of the connection in progress.
+     */
+    private void closeAsync(final AmqpConnection c) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                c.close();
+            }
+        });
+    }
+
     public void shutdown() {
         for (Map.Entry<String, AmqpConnection> c: connectionMap.entrySet()) {
-            c.getValue().shutdown();
+            c.getValue().close();
         }
     }
 
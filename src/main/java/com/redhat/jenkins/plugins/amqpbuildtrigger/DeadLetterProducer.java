@@ -0,0 +1,71 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Forwards messages whose builds could not be scheduled to a dead letter address on the same server. It has a
+ * session of its own, as the consumer sessions of a source are only used by their delivery threads.
+ */
+public class DeadLetterProducer {
+    private static final Logger LOGGER = Logger.getLogger(DeadLetterProducer.class.getName());
+
+    private final String address;
+    private Session session;
+    private MessageProducer producer;
+
+    public DeadLetterProducer(Connection connection, String address) throws JMSException {
+        this.address = address;
+        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        producer = session.createProducer(session.createQueue(address));
+    }
+
+    /**
+     * @return true if all messages were sent
+     */
+    public synchronized boolean send(List<Message> messages) {
+        boolean sent = true;
+        for (Message message : messages) {
+            try {
+                if (producer == null) {
+                    throw new JMSException("Dead letter producer closed");
+                }
+                producer.send(message);
+                LOGGER.warning("Message " + message.getJMSMessageID() + " sent to dead letter address " + address);
+                RetryPolicy.getInstance().deadLettered(true);
+            } catch (JMSException e) {
+                sent = false;
+                LOGGER.warning("Cannot send message to dead letter address " + address + ". " + e.getMessage());
+                RetryPolicy.getInstance().deadLettered(false);
+            }
+        }
+        return sent;
+    }
+
+    public synchronized void close() {
+        if (producer != null) {
+            try {
+                producer.close();
+            } catch (JMSException e) {
+                LOGGER.warning("Cannot close dead letter producer for " + address + ". " + e.getMessage());
+            } finally {
+                producer = null;
+            }
+        }
+        if (session != null) {
+            try {
+                session.close();
+            } catch (JMSException e) {
+                LOGGER.warning("Cannot close session. " + e.getMessage());
+            } finally {
+                session = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the keys of messages whose builds are being scheduled or were scheduled, so that a message delivered
+ * again after a reconnect or a server failover does not trigger the same builds twice, even while the first delivery
+ * is still waiting to be dispatched. Keys are kept for a time window and up to a number of messages, the oldest being
+ * forgotten first, so memory use is bounded. Only the jobs of a message whose builds failed are recorded with it, so
+ * the size of an entry does not grow with the number of jobs a message triggers.
+ */
+public class DeduplicationCache {
+    // Keys in the order they were recorded
+    private final LinkedHashMap<String, Reservation> keys = new LinkedHashMap<String, Reservation>();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private volatile long window;
+    private volatile int capacity;
+
+    private static class InstanceHolder {
+        private static final DeduplicationCache INSTANCE = new DeduplicationCache();
+    }
+
+    public static DeduplicationCache getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public DeduplicationCache() {
+        reconfigure();
+    }
+
+    /**
+     * @param window in ms
+     */
+    DeduplicationCache(long window, int capacity) {
+        configure(window, capacity);
+    }
+
+    /**
+     * Applies the current global configuration.
+     */
+    public void reconfigure() {
+        AmqpBuildTriggerConfiguration config = AmqpBuildTriggerConfiguration.get();
+        int windowSecs = config != null ? config.getDeduplicationWindow() : AmqpBuildTriggerConfiguration.DEFAULT_DEDUPLICATION_WINDOW;
+        configure(TimeUnit.SECONDS.toMillis(windowSecs),
+                config != null ? config.getDeduplicationCapacity() : AmqpBuildTriggerConfiguration.DEFAULT_DEDUPLICATION_CAPACITY);
+    }
+
+    private synchronized void configure(long window, int capacity) {
+        this.window = window;
+        this.capacity = capacity;
+        if (window == 0) {
+            keys.clear();
+        }
+        evict(System.currentTimeMillis());
+    }
+
+    public boolean isEnabled() {
+        return window > 0;
+    }
+
+    /**
+     * Reserves the jobs of a message before its builds are dispatched. Checking and recording them is one step, so
+     * that of two deliveries of the same message, whether in turn or on competing consumers, only one dispatches the
+     * build of any job. The first delivery reserves all the jobs it is given, a later one only those released since.
+     *
+     * @return the jobs to be built. If there are none, the message is a duplicate.
+     */
+    public synchronized List<String> reserve(String key, Collection<String> jobs) {
+        if (key == null || window == 0) {
+            return new ArrayList<String>(jobs);
+        }
+        long now = System.currentTimeMillis();
+        Reservation r = keys.get(key);
+        if (r == null || now - r.time > window) {
+            // Re-inserted so that the keys stay in the order they were recorded
+            keys.remove(key);
+            keys.put(key, new Reservation(now));
+            evict(now);
+            return new ArrayList<String>(jobs);
+        }
+        List<String> reserved = new ArrayList<String>();
+        if (r.released != null) {
+            for (String job : jobs) {
+                if (r.released.remove(job)) {
+                    reserved.add(job);
+                }
+            }
+            if (r.released.isEmpty()) {
+                r.released = null;
+            }
+        }
+        if (reserved.isEmpty() && !jobs.isEmpty()) {
+            duplicateCount.incrementAndGet();
+        }
+        return reserved;
+    }
+
+    /**
+     * Releases the job of a message whose build could not be scheduled, so that it is built if the message is
+     * delivered again.
+     */
+    public synchronized void release(String key, String job) {
+        if (key == null) {
+            return;
+        }
+        Reservation r = keys.get(key);
+        if (r != null) {
+            if (r.released == null) {
+                r.released = new HashSet<String>();
+            }
+            r.released.add(job);
+        }
+    }
+
+    private void evict(long now) {
+        Iterator<Map.Entry<String, Reservation>> i = keys.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, Reservation> e = i.next();
+            if (keys.size() <= capacity && now - e.getValue().time <= window) {
+                break;
+            }
+            i.remove();
+        }
+    }
+
+    public synchronized int getSize() {
+        return keys.size();
+    }
+
+    /**
+     * @return the number of messages whose builds had all been dispatched already
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    private static class Reservation {
+        private final long time;
+        // Jobs whose builds failed, to be built if the message is delivered again, null if there are none
+        private Set<String> released = null;
+
+        Reservation(long time) {
+            this.time = time;
+        }
+    }
+}
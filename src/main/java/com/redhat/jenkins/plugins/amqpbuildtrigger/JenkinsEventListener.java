@@ -13,23 +13,43 @@ public class JenkinsEventListener extends ItemListener {
     @Override
     public final void onLoaded() {
         LOGGER.info("Starting AMQP Build Trigger");
-        ConnectionManager.getInstance().initialize();
-        // TODO: Start ConnectionUpdateTimer
+        ConnectionManager.getInstance().initializeAsync();
         super.onLoaded();
     }
 
     @Override
     public final void onUpdated(Item item) {
         LOGGER.info("Job updated: " + item.getFullName());
-        ConnectionManager.getInstance().initialize();
+        ConnectionManager.getInstance().updateItem(item);
         super.onUpdated(item);
     }
 
+    @Override
+    public final void onCreated(Item item) {
+        ConnectionManager.getInstance().updateItem(item);
+        super.onCreated(item);
+    }
+
+    @Override
+    public final void onDeleted(Item item) {
+        LOGGER.info("Job deleted: " + item.getFullName());
+        ConnectionManager.getInstance().removeItem(item);
+        super.onDeleted(item);
+    }
+
+    @Override
+    public final void onLocationChanged(Item item, String oldFullName, String newFullName) {
+        LOGGER.info("Job moved: " + oldFullName + " -> " + newFullName);
+        ConnectionManager.getInstance().renameItem(oldFullName, newFullName);
+        super.onLocationChanged(item, oldFullName, newFullName);
+    }
+
     @Override
     public final void onBeforeShutdown() {
         LOGGER.info("Shutting down AMQP Build Trigger");
         ConnectionManager.getInstance().shutdown();
-        // TODO: Stop ConnectionUpdateTimer
+        TriggerDispatcher.getInstance().shutdown();
+        TriggerJournal.getInstance().close();
         super.onBeforeShutdown();
     }
 
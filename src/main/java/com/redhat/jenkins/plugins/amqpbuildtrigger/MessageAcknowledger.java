@@ -0,0 +1,179 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+import jenkins.util.Timer;
+
+import org.apache.qpid.jms.JmsSession;
+import org.apache.qpid.jms.message.JmsMessageSupport;
+
+import com.redhat.jenkins.plugins.amqpbuildtrigger.AmqpBrokerParams.AcknowledgeMode;
+
+/**
+ * Acknowledges the messages of one source session according to its {@link AcknowledgeMode}.
+ */
+public class MessageAcknowledger {
+    private static final Logger LOGGER = Logger.getLogger(MessageAcknowledger.class.getName());
+
+    private final AcknowledgeMode mode;
+    private final int batchSize;
+    private final long batchTime;
+    private Message lastUnacknowledged = null;
+    private int unacknowledged = 0;
+    private ScheduledFuture<?> flushFuture = null;
+    // Messages received but not yet settled, and what to run once there are none
+    private int inFlight = 0;
+    private Runnable onSettled = null;
+
+    public MessageAcknowledger(AcknowledgeMode mode, int batchSize, long batchTime) {
+        this.mode = mode;
+        this.batchSize = batchSize;
+        this.batchTime = batchTime;
+    }
+
+    public AcknowledgeMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return true if messages are only acknowledged once their builds are scheduled
+     */
+    public boolean isAfterScheduling() {
+        return mode == AcknowledgeMode.AFTER_SCHEDULED || mode == AcknowledgeMode.TRANSACTED_BATCH;
+    }
+
+    /**
+     * @return the acknowledge mode the session must be created with
+     */
+    public int getSessionMode() {
+        switch (mode) {
+            case DUPS_OK:
+                return Session.DUPS_OK_ACKNOWLEDGE;
+            case CLIENT_BATCHED:
+                return Session.CLIENT_ACKNOWLEDGE;
+            case AFTER_SCHEDULED:
+                return JmsSession.INDIVIDUAL_ACKNOWLEDGE;
+            case TRANSACTED_BATCH:
+                return Session.SESSION_TRANSACTED;
+            case AUTO:
+            default:
+                return Session.AUTO_ACKNOWLEDGE;
+        }
+    }
+
+    /**
+     * Called on the delivery thread as soon as a message is received. Every message received is later settled by a
+     * call to {@link #scheduled(Message, boolean)} or {@link #released(Message)}.
+     */
+    public synchronized void received(Message message) {
+        inFlight++;
+    }
+
+    /**
+     * Called on the delivery thread once a message has been handed to the dispatcher.
+     */
+    public synchronized void delivered(Message message) {
+        if (mode != AcknowledgeMode.CLIENT_BATCHED) {
+            return;
+        }
+        lastUnacknowledged = message;
+        if (++unacknowledged >= batchSize) {
+            flush();
+        } else if (flushFuture == null) {
+            // The timer only waits out the batch time, acknowledging waits for the broker
+            flushFuture = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ConnectionManager.getInstance().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    });
+                }
+            }, batchTime, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called once the builds for a message have been scheduled, or have failed to be. A message which failed is
+     * returned to the server to be redelivered. This may wait for the broker, so it must not be called on the
+     * thread of the {@link BulkScheduler}.
+     */
+    public void scheduled(Message message, boolean success) {
+        if (mode == AcknowledgeMode.AFTER_SCHEDULED) {
+            try {
+                if (!success) {
+                    message.setIntProperty(JmsMessageSupport.JMS_AMQP_ACK_TYPE, JmsMessageSupport.MODIFIED_FAILED);
+                }
+                message.acknowledge();
+            } catch (JMSException e) {
+                LOGGER.warning("Cannot acknowledge message " + message + ". " + e.getMessage());
+            }
+        }
+        settled();
+    }
+
+    /**
+     * Called for a message which was not dispatched and is left unacknowledged, so that the server delivers it again
+     * once the consumer is closed.
+     */
+    public void released(Message message) {
+        settled();
+    }
+
+    /**
+     * Runs a task once all messages received so far are settled, at once if they already are. The task runs on the
+     * thread settling the last message.
+     */
+    public void whenSettled(Runnable task) {
+        synchronized (this) {
+            if (inFlight > 0) {
+                onSettled = task;
+                return;
+            }
+        }
+        task.run();
+    }
+
+    private void settled() {
+        Runnable task = null;
+        synchronized (this) {
+            if (--inFlight == 0 && onSettled != null) {
+                task = onSettled;
+                onSettled = null;
+            }
+        }
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Acknowledges all messages of a batch delivered so far. In client acknowledge mode, acknowledging one message
+     * acknowledges every message the session has delivered before it.
+     */
+    public synchronized void flush() {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        if (lastUnacknowledged != null) {
+            try {
+                lastUnacknowledged.acknowledge();
+            } catch (JMSException e) {
+                // The messages will be redelivered
+                LOGGER.warning("Cannot acknowledge " + unacknowledged + " messages. " + e.getMessage());
+            } finally {
+                lastUnacknowledged = null;
+                unacknowledged = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+import javax.jms.TextMessage;
+
+/**
+ * Extracts trigger parameters from a message according to its body type. Text is handed to the
+ * {@link PayloadParser} as it is, and bytes are parsed as UTF-8 without being decoded to text, so no copy of the
+ * whole body is made beyond reading it. Map bodies are read entry by entry without any text at all.
+ */
+public final class MessageBodyDecoder {
+    private static final Logger LOGGER = Logger.getLogger(MessageBodyDecoder.class.getName());
+    private static final String KEY_PARAM_NAME = "name";
+    private static final String KEY_PARAM_VALUE = "value";
+    // Set by the client for Data sections, AmqpValue bodies do not have it
+    private static final String CONTENT_TYPE_PROPERTY = "JMS_AMQP_CONTENT_TYPE";
+    private static final String SERIALIZED_OBJECT_CONTENT_TYPE = "application/x-java-serialized-object";
+
+    private MessageBodyDecoder() {}
+
+    /**
+     * @return the name/value pairs of the body, or {@code null} if the body does not hold any in a known format
+     */
+    public static List<TriggerMessage.Parameter> decode(Message message, Predicate<String> acceptKey) {
+        try {
+            if (message instanceof TextMessage) {
+                return PayloadParser.parse(((TextMessage) message).getText(), acceptKey);
+            }
+            if (message instanceof BytesMessage) {
+                return PayloadParser.parse(getBytes((BytesMessage) message), acceptKey);
+            }
+            if (message instanceof MapMessage) {
+                return getParameters((MapMessage) message, acceptKey);
+            }
+            if (message instanceof ObjectMessage) {
+                return getParameters((ObjectMessage) message, acceptKey);
+            }
+        } catch (JMSException e) {
+            LOGGER.warning("Cannot read body of message " + message + ". " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static byte[] getBytes(BytesMessage message) throws JMSException {
+        // The JMS API does not expose the client's buffer, this read is the only copy of the body
+        byte[] bytes = new byte[(int) message.getBodyLength()];
+        message.readBytes(bytes);
+        return bytes;
+    }
+
+    // Each map entry is a parameter
+    private static List<TriggerMessage.Parameter> getParameters(MapMessage message, Predicate<String> acceptKey) throws JMSException {
+        List<TriggerMessage.Parameter> list = new ArrayList<TriggerMessage.Parameter>();
+        Enumeration<?> names = message.getMapNames();
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            String key = ParameterMapping.fold(name);
+            if (acceptKey == null || acceptKey.test(key)) {
+                list.add(new TriggerMessage.Parameter(name, key, message.getString(name)));
+            }
+        }
+        return list;
+    }
+
+    // AmqpValue bodies of a list or string. Serialized Java objects are never deserialized.
+    private static List<TriggerMessage.Parameter> getParameters(ObjectMessage message, Predicate<String> acceptKey) throws JMSException {
+        if (SERIALIZED_OBJECT_CONTENT_TYPE.equals(message.getStringProperty(CONTENT_TYPE_PROPERTY))) {
+            return null;
+        }
+        Serializable body = message.getObject();
+        if (body instanceof CharSequence) {
+            return PayloadParser.parse((CharSequence) body, acceptKey);
+        }
+        if (!(body instanceof List)) {
+            return null;
+        }
+        List<TriggerMessage.Parameter> list = new ArrayList<TriggerMessage.Parameter>();
+        for (Object o : (List<?>) body) {
+            if (o instanceof Map) {
+                Object name = ((Map<?, ?>) o).get(KEY_PARAM_NAME);
+                Object value = ((Map<?, ?>) o).get(KEY_PARAM_VALUE);
+                if (name != null && value != null) {
+                    String key = ParameterMapping.fold(name.toString());
+                    if (acceptKey == null || acceptKey.test(key)) {
+                        list.add(new TriggerMessage.Parameter(name.toString(), key, value.toString()));
+                    }
+                }
+            }
+        }
+        return list;
+    }
+}
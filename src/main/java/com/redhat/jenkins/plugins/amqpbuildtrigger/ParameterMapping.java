@@ -0,0 +1,114 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Maps message parameters onto the parameters defined by a job. Parameter names are matched case-insensitively
+ * through an index of case-folded names, built once per job configuration.
+ */
+public final class ParameterMapping {
+    private final ParametersDefinitionProperty property;
+    private final Map<String, Integer> index;
+    private final String[] names;
+
+    private ParameterMapping(ParametersDefinitionProperty property) {
+        this.property = property;
+        List<String> defined = new ArrayList<String>();
+        if (property != null) {
+            for (ParameterDefinition paramDef : property.getParameterDefinitions()) {
+                if (paramDef.getDefaultParameterValue() != null) {
+                    defined.add(paramDef.getName());
+                }
+            }
+        }
+        this.names = defined.toArray(new String[0]);
+        Map<String, Integer> m = new HashMap<String, Integer>();
+        for (int i = 0; i < names.length; i++) {
+            String key = fold(names[i]);
+            if (!m.containsKey(key)) {
+                m.put(key, i);
+            }
+        }
+        this.index = m;
+    }
+
+    /**
+     * Returns the mapping for the current configuration of a job, reusing {@code current} if the job's parameter
+     * definitions have not been replaced since it was built.
+     */
+    public static ParameterMapping of(Job<?, ?> job, ParameterMapping current) {
+        ParametersDefinitionProperty property = job.getProperty(ParametersDefinitionProperty.class);
+        if (current != null && current.property == property) {
+            return current;
+        }
+        return new ParameterMapping(property);
+    }
+
+    public static String fold(String name) {
+        return name.toUpperCase(Locale.ROOT);
+    }
+
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    public boolean isEmpty() {
+        return names.length == 0;
+    }
+
+    /**
+     * Returns a value for each defined parameter present in the message, in definition order. If the message
+     * contains a parameter more than once, the first occurrence is used.
+     */
+    public List<ParameterValue> map(List<TriggerMessage.Parameter> messageParameters) {
+        return map(messageParameters, null);
+    }
+
+    /**
+     * As {@link #map(List)}, taking parameters missing from {@code messageParameters} from {@code fallback}. The
+     * fallback is not called if every defined parameter is already present.
+     */
+    public List<ParameterValue> map(List<TriggerMessage.Parameter> messageParameters, Supplier<List<TriggerMessage.Parameter>> fallback) {
+        if (names.length == 0) {
+            return Collections.emptyList();
+        }
+        String[] values = new String[names.length];
+        int found = collect(messageParameters, values, 0);
+        if (found < names.length && fallback != null) {
+            found = collect(fallback.get(), values, found);
+        }
+        if (found == 0) {
+            return Collections.emptyList();
+        }
+        List<ParameterValue> newParams = new ArrayList<ParameterValue>(found);
+        for (int i = 0; i < names.length; i++) {
+            if (values[i] != null) {
+                newParams.add(new StringParameterValue(names[i], values[i]));
+            }
+        }
+        return newParams;
+    }
+
+    private int collect(List<TriggerMessage.Parameter> messageParameters, String[] values, int found) {
+        for (TriggerMessage.Parameter p : messageParameters) {
+            Integer i = index.get(p.getKey());
+            if (i != null && values[i] == null) {
+                values[i] = p.getValue();
+                found++;
+            }
+        }
+        return found;
+    }
+}
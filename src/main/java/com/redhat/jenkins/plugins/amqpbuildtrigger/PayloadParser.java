@@ -0,0 +1,320 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Streaming parser for the trigger payload format {@code [{"name": "...", "value": "..."}, ...]}. Only the name and
+ * value of each entry are decoded, everything else is skipped over without building any objects. Input which is
+ * not in this format is reported by a {@code null} result rather than an exception.
+ * <p>
+ * Like the json-lib parser used before, unquoted keys and values and single quoted strings are accepted, so that
+ * payloads such as {@code [{name:'BRANCH',value:main}]} keep working.
+ * <p>
+ * A UTF-8 payload is parsed as bytes, without decoding it to text first. All characters which give the payload its
+ * structure are ASCII, and the bytes of a multi-byte UTF-8 character are never ASCII, so only the names and values
+ * extracted are decoded.
+ */
+public final class PayloadParser {
+    private static final String KEY_PARAM_NAME = "name";
+    private static final String KEY_PARAM_VALUE = "value";
+
+    // Exactly one of these is set
+    private final CharSequence s;
+    private final byte[] b;
+    private final int len;
+    private final Predicate<String> acceptKey;
+    private int pos = 0;
+
+    private PayloadParser(CharSequence s, Predicate<String> acceptKey) {
+        this.s = s;
+        this.b = null;
+        this.len = s.length();
+        this.acceptKey = acceptKey;
+    }
+
+    private PayloadParser(byte[] b, Predicate<String> acceptKey) {
+        this.s = null;
+        this.b = b;
+        this.len = b.length;
+        this.acceptKey = acceptKey;
+    }
+
+    /**
+     * Parses a payload.
+     *
+     * @param payload the message payload
+     * @param acceptKey if not {@code null}, only entries whose case-folded name it accepts are returned
+     * @return the name/value pairs in payload order, or {@code null} if the payload is not a JSON array
+     */
+    public static List<TriggerMessage.Parameter> parse(CharSequence payload, Predicate<String> acceptKey) {
+        if (payload == null) {
+            return null;
+        }
+        return new PayloadParser(payload, acceptKey).parseArray();
+    }
+
+    /**
+     * Parses a UTF-8 encoded payload, see {@link #parse(CharSequence, Predicate)}.
+     */
+    public static List<TriggerMessage.Parameter> parse(byte[] payload, Predicate<String> acceptKey) {
+        if (payload == null) {
+            return null;
+        }
+        return new PayloadParser(payload, acceptKey).parseArray();
+    }
+
+    private List<TriggerMessage.Parameter> parseArray() {
+        if (b == null && len > 0 && s.charAt(0) == '\uFEFF') {
+            pos++;
+        } else if (b != null && len >= 3 && b[0] == (byte) 0xEF && b[1] == (byte) 0xBB && b[2] == (byte) 0xBF) {
+            pos += 3;
+        }
+        skipWhitespace();
+        if (!consume('[')) {
+            return null;
+        }
+        List<TriggerMessage.Parameter> list = new ArrayList<TriggerMessage.Parameter>();
+        skipWhitespace();
+        if (!consume(']')) {
+            while (true) {
+                skipWhitespace();
+                if (peek() == '{') {
+                    if (!parseEntry(list)) {
+                        return null;
+                    }
+                } else if (!skipValue()) {
+                    return null;
+                }
+                skipWhitespace();
+                if (consume(']')) {
+                    break;
+                }
+                if (!consume(',')) {
+                    return null;
+                }
+            }
+        }
+        skipWhitespace();
+        return pos == len ? list : null;
+    }
+
+    // Parses one {...} entry, adding its name/value pair to the list if it has both
+    private boolean parseEntry(List<TriggerMessage.Parameter> list) {
+        pos++;
+        int nameStart = -1, nameEnd = -1, valueStart = -1, valueEnd = -1;
+        skipWhitespace();
+        if (!consume('}')) {
+            while (true) {
+                skipWhitespace();
+                int keyStart = pos;
+                if (!skipKey()) {
+                    return false;
+                }
+                int keyEnd = pos;
+                skipWhitespace();
+                if (!consume(':')) {
+                    return false;
+                }
+                skipWhitespace();
+                int start = pos;
+                if (!skipValue()) {
+                    return false;
+                }
+                if (isKey(keyStart, keyEnd, KEY_PARAM_NAME)) {
+                    nameStart = start;
+                    nameEnd = pos;
+                } else if (isKey(keyStart, keyEnd, KEY_PARAM_VALUE)) {
+                    valueStart = start;
+                    valueEnd = pos;
+                }
+                skipWhitespace();
+                if (consume('}')) {
+                    break;
+                }
+                if (!consume(',')) {
+                    return false;
+                }
+            }
+        }
+        if (nameStart >= 0 && valueStart >= 0) {
+            String name = decode(nameStart, nameEnd);
+            String key = ParameterMapping.fold(name);
+            if (acceptKey == null || acceptKey.test(key)) {
+                list.add(new TriggerMessage.Parameter(name, key, decode(valueStart, valueEnd)));
+            }
+        }
+        return true;
+    }
+
+    private boolean skipKey() {
+        return isQuote(peek()) ? skipString() : skipToken();
+    }
+
+    // Skips a value of any type, checking only as much structure as is needed to find its end
+    private boolean skipValue() {
+        char c = peek();
+        if (isQuote(c)) {
+            return skipString();
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (pos < len) {
+                c = charAt(pos);
+                if (isQuote(c)) {
+                    if (!skipString()) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+                if (depth == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return skipToken();
+    }
+
+    // Skips a string in double or single quotes
+    private boolean skipString() {
+        char quote = charAt(pos++);
+        while (pos < len) {
+            char c = charAt(pos++);
+            if (c == '\\') {
+                pos++;
+            } else if (c == quote) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Skips a number, true, false, null or unquoted text, up to the next delimiter
+    private boolean skipToken() {
+        int start = pos;
+        while (pos < len && !isDelimiter(charAt(pos))) {
+            pos++;
+        }
+        return pos > start;
+    }
+
+    private boolean isKey(int start, int end, String key) {
+        if (isQuote(charAt(start))) {
+            start++;
+            end--;
+        } else {
+            end = trimEnd(start, end);
+        }
+        if (end - start != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (charAt(start + i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Strings are unescaped, any other value is returned as its text
+    private String decode(int start, int end) {
+        if (!isQuote(charAt(start))) {
+            return text(start, trimEnd(start, end));
+        }
+        int i = start + 1;
+        int last = end - 1;
+        // Start of the text not yet copied, up to the next escape
+        int copied = i;
+        StringBuilder sb = null;
+        while (i < last) {
+            if (charAt(i) != '\\') {
+                i++;
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(last - start);
+            }
+            sb.append(text(copied, i));
+            char e = i + 1 < last ? charAt(i + 1) : '\\';
+            i += 2;
+            switch (e) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (i + 4 <= last) {
+                        int cp = 0;
+                        for (int j = 0; j < 4; j++) {
+                            cp = (cp << 4) + Character.digit(charAt(i + j), 16);
+                        }
+                        sb.append((char) cp);
+                        i += 4;
+                    }
+                    break;
+                default: sb.append(e);
+            }
+            copied = i;
+        }
+        if (sb == null) {
+            return text(start + 1, last);
+        }
+        return sb.append(text(copied, Math.max(copied, last))).toString();
+    }
+
+    // Bytes of multi-byte UTF-8 characters are all 0x80 or above, so never match an ASCII character
+    private char charAt(int i) {
+        return b != null ? (char) (b[i] & 0xFF) : s.charAt(i);
+    }
+
+    private String text(int start, int end) {
+        return b != null ? new String(b, start, end - start, StandardCharsets.UTF_8) : s.subSequence(start, end).toString();
+    }
+
+    private char peek() {
+        return pos < len ? charAt(pos) : 0;
+    }
+
+    private boolean consume(char c) {
+        if (pos < len && charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < len && isWhitespace(charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && isWhitespace(charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isQuote(char c) {
+        return c == '"' || c == '\'';
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == ',' || c == ':' || c == '{' || c == '}' || c == '[' || c == ']' || c == '"' || c < ' ';
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
@@ -0,0 +1,70 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Scales consumer prefetch down while the Jenkins build queue or the trigger dispatch queue is backed up, and back
+ * up again as they drain. Each doubling of the backlog beyond the configured threshold halves the prefetch of every
+ * source. Recovery is one step per period, so a brief lull does not immediately open the flood gates again.
+ * <p>
+ * The AMQP client fixes the credit of a consumer when it is created, so a change of scale replaces the consumers. The
+ * consumers replaced stop receiving at once, but only close once the messages they delivered are settled.
+ */
+@Extension
+public class PrefetchController extends PeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(PrefetchController.class.getName());
+    private static final long RECURRENCE_TIME = 5000; // ms, ie 5 sec
+    private static final int MAX_LEVEL = 10;
+
+    private static volatile int level = 0;
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_TIME;
+    }
+
+    /**
+     * Applies the current scale to a configured prefetch. A prefetch of 0 is never changed.
+     */
+    public static int scale(int prefetch) {
+        int l = level;
+        if (l == 0 || prefetch == 0) {
+            return prefetch;
+        }
+        return Math.max(1, prefetch >> l);
+    }
+
+    /**
+     * @return the number of times the prefetch is currently halved
+     */
+    public static int getLevel() {
+        return level;
+    }
+
+    @Override
+    protected void doRun() {
+        AmqpBuildTriggerConfiguration config = AmqpBuildTriggerConfiguration.get();
+        int target = 0;
+        if (config != null && config.isAdaptivePrefetch()) {
+            int threshold = config.getAdaptivePrefetchThreshold();
+            int backlog = Math.max(Jenkins.getInstance().getQueue().getApproximateItemsQuickly().size(),
+                    TriggerDispatcher.getInstance().getQueueDepth());
+            while (target < MAX_LEVEL && backlog >= ((long) threshold << target)) {
+                target++;
+            }
+        }
+        int current = level;
+        // Shrink at once, widen gradually
+        int next = target >= current ? target : current - 1;
+        if (next != current) {
+            level = next;
+            LOGGER.info("Consumer prefetch scaled to 1/" + (1 << next) + " of the configured values");
+            ConnectionManager.getInstance().updateAsync();
+        }
+    }
+}
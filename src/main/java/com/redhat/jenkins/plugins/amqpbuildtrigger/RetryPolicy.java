@@ -0,0 +1,91 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jenkins.util.Timer;
+
+/**
+ * Retries failed build scheduling with exponential backoff, and counts what became of failed messages.
+ */
+public class RetryPolicy {
+    private static final long MAX_DELAY = 60000; // ms, ie 1 min
+
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private final AtomicLong deadLetterFailureCount = new AtomicLong();
+    // Runs the retries, which may wait for room in the dispatcher, so they do not hold the Jenkins timer threads
+    private final ThreadPoolExecutor executor;
+
+    private static class InstanceHolder {
+        private static final RetryPolicy INSTANCE = new RetryPolicy();
+    }
+
+    public static RetryPolicy getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public RetryPolicy() {
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "AmqpBuildTrigger.retry"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs a failed attempt again after a delay. The Jenkins timer only waits out the delay and hands the attempt to
+     * the retry thread, as dispatching it may wait for room in the dispatcher.
+     *
+     * @param attempt the number of the attempt which failed, starting at 0
+     * @return false if the attempts are exhausted and the retry was not scheduled
+     */
+    public boolean retry(final Runnable task, int attempt) {
+        AmqpBuildTriggerConfiguration config = AmqpBuildTriggerConfiguration.get();
+        int attempts = config != null ? config.getRetryAttempts() : AmqpBuildTriggerConfiguration.DEFAULT_RETRY_ATTEMPTS;
+        long delay = config != null ? config.getRetryDelay() : AmqpBuildTriggerConfiguration.DEFAULT_RETRY_DELAY;
+        if (attempt >= attempts) {
+            exhaustedCount.incrementAndGet();
+            return false;
+        }
+        retryCount.incrementAndGet();
+        // Exponential backoff, with up to half of it random so that retries for many jobs do not all come at once
+        long backoff = Math.min(MAX_DELAY, delay << Math.min(attempt, 16));
+        backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(task);
+            }
+        }, backoff, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    void deadLettered(boolean sent) {
+        (sent ? deadLetterCount : deadLetterFailureCount).incrementAndGet();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return the number of times scheduling a build failed after all retries
+     */
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    public long getDeadLetterFailureCount() {
+        return deadLetterFailureCount.get();
+    }
+}
@@ -0,0 +1,116 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.model.ParameterValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+/**
+ * Collapses the messages received for one trigger within a time window into a single build. Messages are grouped
+ * by the value of a key parameter (all messages form one group if there is none), and each group is scheduled once
+ * when its window closes. Each message is told the result of the build it was coalesced into only then, so that it
+ * stays journaled or unacknowledged until the build is scheduled, and is retried or dead lettered if it is not.
+ */
+public class TriggerCoalescer {
+    private static final Logger LOGGER = Logger.getLogger(TriggerCoalescer.class.getName());
+
+    public enum Mode {
+        /** The parameters of the latest message are used */
+        LATEST,
+        /** The parameters of all messages are merged, later values replacing earlier ones */
+        MERGE
+    }
+
+    private final AmqpBuildTrigger trigger;
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+    public TriggerCoalescer(AmqpBuildTrigger trigger) {
+        this.trigger = trigger;
+    }
+
+    /**
+     * @param callback told whether the build the message is coalesced into was scheduled, once its window closes
+     */
+    public synchronized void offer(String source, List<ParameterValue> parameters, String keyParameter, Mode mode, long window,
+                                   Consumer<Boolean> callback) {
+        final String key = getKey(parameters, keyParameter);
+        Pending p = pending.get(key);
+        if (p == null) {
+            p = new Pending();
+            pending.put(key, p);
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(key);
+                }
+            }, window, TimeUnit.SECONDS);
+        } else if (mode == Mode.MERGE) {
+            Map<String, ParameterValue> merged = new LinkedHashMap<String, ParameterValue>();
+            for (ParameterValue v : p.parameters) {
+                merged.put(v.getName(), v);
+            }
+            for (ParameterValue v : parameters) {
+                merged.put(v.getName(), v);
+            }
+            parameters = new ArrayList<ParameterValue>(merged.values());
+        }
+        p.source = source;
+        p.parameters = parameters;
+        p.callbacks.add(callback);
+    }
+
+    private void flush(String key) {
+        Pending p;
+        synchronized (this) {
+            p = pending.remove(key);
+        }
+        if (p != null) {
+            final List<Consumer<Boolean>> callbacks = p.callbacks;
+            if (callbacks.size() > 1) {
+                LOGGER.info("Coalesced " + callbacks.size() + " messages into one build of " + trigger.getProjectName());
+            }
+            trigger.schedule(p.source, p.parameters, new Consumer<Boolean>() {
+                @Override
+                public void accept(Boolean scheduled) {
+                    if (!scheduled) {
+                        LOGGER.warning("Cannot schedule coalesced build of " + trigger.getProjectName());
+                    }
+                    for (Consumer<Boolean> c : callbacks) {
+                        try {
+                            c.accept(scheduled);
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Exception thrown after scheduling coalesced build of " + trigger.getProjectName(), e);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static String getKey(List<ParameterValue> parameters, String keyParameter) {
+        if (keyParameter != null && !keyParameter.isEmpty()) {
+            for (ParameterValue v : parameters) {
+                if (v.getName().equalsIgnoreCase(keyParameter)) {
+                    return String.valueOf(v.getValue());
+                }
+            }
+        }
+        return "";
+    }
+
+    private static class Pending {
+        private String source;
+        private List<ParameterValue> parameters;
+        // One for each message coalesced
+        private final List<Consumer<Boolean>> callbacks = new ArrayList<Consumer<Boolean>>();
+    }
+}
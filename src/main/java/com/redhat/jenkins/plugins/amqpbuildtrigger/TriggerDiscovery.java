@@ -0,0 +1,110 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.triggers.Trigger;
+import hudson.triggers.TriggerDescriptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import jenkins.model.ParameterizedJobMixIn;
+
+/**
+ * Finds the AMQP triggers of all parameterized jobs (freestyle, Pipeline, matrix, multibranch children and any
+ * other type) in a single traversal of the item tree. Each folder is walked as a separate fork/join task, so large
+ * folder hierarchies are traversed in parallel.
+ */
+public class TriggerDiscovery {
+    private static final Logger LOGGER = Logger.getLogger(TriggerDiscovery.class.getName());
+    private static final int MAX_PARALLELISM = 8;
+
+    private final Map<String, AmqpBuildTrigger> triggers = new ConcurrentHashMap<String, AmqpBuildTrigger>();
+    private final AtomicInteger itemCount = new AtomicInteger();
+    private long duration = 0;
+
+    /**
+     * Walks the tree below {@code root}.
+     */
+    public TriggerDiscovery run(ItemGroup<? extends Item> root) {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+        try {
+            pool.invoke(new GroupTask(root));
+        } finally {
+            pool.shutdown();
+        }
+        duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.info("Discovered " + triggers.size() + (triggers.size() == 1 ? " AMQP trigger" : " AMQP triggers") +
+                " in " + itemCount.get() + " items in " + duration + " ms");
+        return this;
+    }
+
+    /**
+     * @return the triggers found, by job full name
+     */
+    public Map<String, AmqpBuildTrigger> getTriggers() {
+        return triggers;
+    }
+
+    public int getItemCount() {
+        return itemCount.get();
+    }
+
+    /**
+     * @return the duration of the traversal in ms
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public static AmqpBuildTrigger getBuildTrigger(Item item) {
+        if (item instanceof ParameterizedJobMixIn.ParameterizedJob) {
+            Map<TriggerDescriptor, Trigger<?>> m = ((ParameterizedJobMixIn.ParameterizedJob) item).getTriggers();
+            for (Trigger<?> t : m.values()) {
+                if (t instanceof AmqpBuildTrigger) {
+                    return (AmqpBuildTrigger) t;
+                }
+            }
+        }
+        return null;
+    }
+
+    private class GroupTask extends RecursiveAction {
+        private final ItemGroup<? extends Item> group;
+
+        GroupTask(ItemGroup<? extends Item> group) {
+            this.group = group;
+        }
+
+        @Override
+        protected void compute() {
+            List<GroupTask> subtasks = new ArrayList<GroupTask>();
+            // Pool threads do not inherit the caller's authentication, and item lists are filtered by permission
+            try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+                for (Item item : group.getItems()) {
+                    itemCount.incrementAndGet();
+                    AmqpBuildTrigger t = getBuildTrigger(item);
+                    if (t != null) {
+                        triggers.put(item.getFullName(), t);
+                    }
+                    if (item instanceof ItemGroup) {
+                        @SuppressWarnings("unchecked")
+                        ItemGroup<? extends Item> g = (ItemGroup<? extends Item>) item;
+                        subtasks.add(new GroupTask(g));
+                    }
+                }
+            }
+            invokeAll(subtasks);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue and worker pool between the JMS delivery threads and build scheduling, so that a busy Jenkins
+ * queue does not hold up message delivery. Each dispatch is submitted with a key, the job it schedules. Dispatches
+ * for one key run one at a time and in submission order, while dispatches for different keys run in parallel.
+ */
+public class TriggerDispatcher {
+    private static final Logger LOGGER = Logger.getLogger(TriggerDispatcher.class.getName());
+
+    public enum OverflowPolicy {
+        /** The delivery thread waits for room in the queue, which holds back further deliveries */
+        BLOCK,
+        /** The new dispatch is dropped */
+        DROP_NEWEST,
+        /** The oldest dispatch queued for the same job is dropped to make room, or the new one if there is none */
+        DROP_OLDEST
+    }
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private volatile ThreadPoolExecutor executor;
+    private volatile OverflowPolicy overflowPolicy;
+    // Keyed dispatches waiting for their turn, guarded by the map
+    private final Map<Object, Lane> lanes = new HashMap<Object, Lane>();
+    private int keyedDepth = 0;
+
+    private static class InstanceHolder {
+        private static final TriggerDispatcher INSTANCE = new TriggerDispatcher();
+    }
+
+    public static TriggerDispatcher getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public TriggerDispatcher() {
+        reconfigure();
+    }
+
+    TriggerDispatcher(int threads, int capacity, OverflowPolicy overflowPolicy) {
+        configure(threads, capacity, overflowPolicy);
+    }
+
+    /**
+     * Applies the current global configuration.
+     */
+    public void reconfigure() {
+        AmqpBuildTriggerConfiguration config = AmqpBuildTriggerConfiguration.get();
+        configure(config != null ? config.getDispatchThreads() : AmqpBuildTriggerConfiguration.DEFAULT_DISPATCH_THREADS,
+                config != null ? config.getDispatchQueueCapacity() : AmqpBuildTriggerConfiguration.DEFAULT_DISPATCH_QUEUE_CAPACITY,
+                config != null ? config.getDispatchOverflowPolicy() : AmqpBuildTriggerConfiguration.DEFAULT_DISPATCH_OVERFLOW_POLICY);
+    }
+
+    /**
+     * A change of capacity starts a new executor, dispatches already queued on the old one still run.
+     */
+    synchronized void configure(int threads, int capacity, OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+
+        ThreadPoolExecutor old = executor;
+        if (old != null && old.getQueue().remainingCapacity() + old.getQueue().size() == capacity) {
+            if (threads > old.getMaximumPoolSize()) {
+                old.setMaximumPoolSize(threads);
+                old.setCorePoolSize(threads);
+            } else {
+                old.setCorePoolSize(threads);
+                old.setMaximumPoolSize(threads);
+            }
+            return;
+        }
+        ThreadPoolExecutor e = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity),
+                new NamingThreadFactory(new DaemonThreadFactory(), "AmqpBuildTrigger.dispatch"),
+                new OverflowHandler());
+        e.allowCoreThreadTimeOut(true);
+        executor = e;
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Dispatches a task after all tasks previously dispatched with the same key. When the queue is full, the task is
+     * dropped or the caller waits, according to the {@link OverflowPolicy}.
+     *
+     * @param onDrop run instead of the task if the overflow policy drops it, may be {@code null}
+     */
+    public void dispatch(Object key, Runnable task, Runnable onDrop) {
+        submittedCount.incrementAndGet();
+        Dispatch d = new Dispatch(task, onDrop);
+        Dispatch dropped = null;
+        Lane start = null;
+        synchronized (lanes) {
+            while (keyedDepth >= getQueueCapacity()) {
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    dropped = d;
+                    break;
+                }
+                if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                    Lane lane = lanes.get(key);
+                    dropped = lane != null ? lane.tasks.poll() : null;
+                    if (dropped == null) {
+                        dropped = d;
+                    } else {
+                        keyedDepth--;
+                    }
+                    break;
+                }
+                try {
+                    lanes.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped = d;
+                    break;
+                }
+            }
+            if (dropped != d) {
+                Lane lane = lanes.get(key);
+                if (lane == null) {
+                    lane = new Lane(key);
+                    lanes.put(key, lane);
+                    start = lane;
+                }
+                lane.tasks.add(d);
+                keyedDepth++;
+            }
+        }
+        if (dropped != null) {
+            drop(dropped);
+        }
+        if (start != null) {
+            executor.execute(start);
+        }
+        updateMaxQueueDepth();
+    }
+
+    private void updateMaxQueueDepth() {
+        int depth = getQueueDepth();
+        if (depth > maxQueueDepth.get()) {
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    private void drop(Dispatch d) {
+        droppedCount.incrementAndGet();
+        d.dropped();
+        LOGGER.warning("AMQP trigger dispatch queue full, dropped a build (" + droppedCount.get() + " dropped so far)");
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public int getQueueDepth() {
+        synchronized (lanes) {
+            return keyedDepth;
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public int getQueueCapacity() {
+        // The executor queue only holds lanes, of which there are never more than dispatches
+        return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    // Only lanes are executed, and they hold dispatches which have already been accepted, so none is ever dropped
+    private class OverflowHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            if (e.isShutdown()) {
+                // Replaced by reconfigure() while this lane was being submitted
+                if (e != executor) {
+                    executor.execute(r);
+                    return;
+                }
+                throw new RejectedExecutionException("AMQP trigger dispatcher is shut down");
+            }
+            try {
+                e.getQueue().put(r);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                r.run();
+            }
+        }
+    }
+
+    private class Dispatch implements Runnable {
+        private final Runnable task;
+        private final Runnable onDrop;
+
+        Dispatch(Runnable task, Runnable onDrop) {
+            this.task = task;
+            this.onDrop = onDrop;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Exception thrown while dispatching AMQP message", e);
+            } finally {
+                completedCount.incrementAndGet();
+            }
+        }
+
+        void dropped() {
+            if (onDrop != null) {
+                try {
+                    onDrop.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Exception thrown while dropping AMQP message", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the dispatches for one key in order, and retires once there are none left.
+     */
+    private class Lane implements Runnable {
+        private final Object key;
+        private final Queue<Dispatch> tasks = new ArrayDeque<Dispatch>();
+
+        Lane(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Dispatch d;
+                synchronized (lanes) {
+                    d = tasks.poll();
+                    if (d == null) {
+                        lanes.remove(key);
+                        return;
+                    }
+                    keyedDepth--;
+                    lanes.notifyAll();
+                }
+                d.run();
+            }
+        }
+    }
+}
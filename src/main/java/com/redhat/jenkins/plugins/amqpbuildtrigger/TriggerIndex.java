@@ -0,0 +1,129 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory index of the AMQP triggers configured in Jenkins, by job and by source. It is built once at startup
+ * and then kept up to date from item events, so that lookups never need to walk the item tree.
+ */
+public class TriggerIndex {
+    // Sorted, so the jobs inside a folder form one contiguous range
+    private final ConcurrentSkipListMap<String, AmqpBuildTrigger> triggers = new ConcurrentSkipListMap<String, AmqpBuildTrigger>();
+    private final Map<String, Set<String>> jobsBySource = new ConcurrentHashMap<String, Set<String>>();
+
+    public AmqpBuildTrigger get(String fullName) {
+        return triggers.get(fullName);
+    }
+
+    /**
+     * @return the trigger previously indexed for the job, if any
+     */
+    public synchronized AmqpBuildTrigger put(String fullName, AmqpBuildTrigger trigger) {
+        AmqpBuildTrigger old = remove(fullName);
+        triggers.put(fullName, trigger);
+        for (String source : getSources(trigger).keySet()) {
+            Set<String> jobs = jobsBySource.get(source);
+            if (jobs == null) {
+                jobs = ConcurrentHashMap.newKeySet();
+                jobsBySource.put(source, jobs);
+            }
+            jobs.add(fullName);
+        }
+        return old;
+    }
+
+    public synchronized AmqpBuildTrigger remove(String fullName) {
+        AmqpBuildTrigger old = triggers.remove(fullName);
+        if (old != null) {
+            for (String source : getSources(old).keySet()) {
+                Set<String> jobs = jobsBySource.get(source);
+                if (jobs != null) {
+                    jobs.remove(fullName);
+                    if (jobs.isEmpty()) {
+                        jobsBySource.remove(source);
+                    }
+                }
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Removes an item and all items it contains.
+     *
+     * @return the removed triggers by job full name
+     */
+    public synchronized Map<String, AmqpBuildTrigger> removeAll(String fullName) {
+        Map<String, AmqpBuildTrigger> removed = new LinkedHashMap<String, AmqpBuildTrigger>();
+        AmqpBuildTrigger t = remove(fullName);
+        if (t != null) {
+            removed.put(fullName, t);
+        }
+        for (String name : descendants(fullName).keySet().toArray(new String[0])) {
+            removed.put(name, remove(name));
+        }
+        return removed;
+    }
+
+    /**
+     * Re-keys an item and all items it contains after a rename or move.
+     */
+    public synchronized void rename(String oldFullName, String newFullName) {
+        for (Map.Entry<String, AmqpBuildTrigger> e : removeAll(oldFullName).entrySet()) {
+            put(newFullName + e.getKey().substring(oldFullName.length()), e.getValue());
+        }
+    }
+
+    /**
+     * @return the full names of the jobs triggered by a source
+     */
+    public Set<String> getJobs(AmqpBrokerParams source) {
+        Set<String> jobs = jobsBySource.get(getSourceKey(source));
+        return jobs != null ? Collections.unmodifiableSet(jobs) : Collections.<String>emptySet();
+    }
+
+    public Map<String, AmqpBuildTrigger> getTriggers() {
+        return Collections.unmodifiableMap(triggers);
+    }
+
+    public int size() {
+        return triggers.size();
+    }
+
+    public synchronized void clear() {
+        triggers.clear();
+        jobsBySource.clear();
+    }
+
+    private NavigableMap<String, AmqpBuildTrigger> descendants(String fullName) {
+        // '0' is the character after '/'
+        return triggers.subMap(fullName + "/", true, fullName + "0", false);
+    }
+
+    public static String getSourceKey(AmqpBrokerParams params) {
+        return params.getConnectionKey() + "/" + params.getSourceAddr();
+    }
+
+    /**
+     * @return the source params of a trigger, by source key
+     */
+    public static Map<String, AmqpBrokerParams> getSources(AmqpBuildTrigger trigger) {
+        Map<String, AmqpBrokerParams> m = new LinkedHashMap<String, AmqpBrokerParams>();
+        if (trigger != null && trigger.getAmqpBrokerParamsList() != null) {
+            for (Object o : trigger.getAmqpBrokerParamsList()) {
+                AmqpBrokerParams p = (AmqpBrokerParams) o;
+                String key = getSourceKey(p);
+                if (!m.containsKey(key)) {
+                    m.put(key, p);
+                }
+            }
+        }
+        return m;
+    }
+}
@@ -0,0 +1,588 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Append-only journal of accepted triggers under JENKINS_HOME, so that messages which were acknowledged before their
+ * builds were queued are not lost if Jenkins stops. Each message is recorded before it is acknowledged, and marked
+ * done once its builds are queued. Messages not marked done are replayed on startup, or when the journal is enabled.
+ * <p>
+ * The journal is written to memory mapped segment files, so a record survives the Jenkins process as soon as it is
+ * written, without a write to disk per message. A segment is deleted once all of its messages are done, and the
+ * messages still pending on startup are copied forward into a fresh segment.
+ */
+public class TriggerJournal {
+    private static final Logger LOGGER = Logger.getLogger(TriggerJournal.class.getName());
+    private static final String DIR_NAME = "amqp-build-trigger-journal";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+    // Length, then type and id, then the payload
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final byte ACCEPT = 1;
+    private static final byte DONE = 2;
+
+    private final File dir;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    // Segment holding each pending entry, by entry id
+    private final Map<Long, Segment> pending = new HashMap<Long, Segment>();
+    private final AtomicLong replayedCount = new AtomicLong();
+    // Entries loaded from the last run, or which failed to replay, waiting for the next replay
+    private final List<Entry> unreplayed = new ArrayList<Entry>();
+    private Segment active = null;
+    private long nextId = 1;
+
+    private static class InstanceHolder {
+        private static final TriggerJournal INSTANCE = new TriggerJournal(new File(Jenkins.getInstance().getRootDir(), DIR_NAME));
+    }
+
+    public static TriggerJournal getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public TriggerJournal(File dir) {
+        this.dir = dir;
+    }
+
+    public boolean isEnabled() {
+        AmqpBuildTriggerConfiguration config = AmqpBuildTriggerConfiguration.get();
+        return config != null && config.isJournal();
+    }
+
+    /**
+     * Records an accepted message.
+     *
+     * @return the id of the entry, or 0 if it could not be recorded
+     */
+    public synchronized long accept(Entry entry) {
+        try {
+            load();
+            if (append(entry)) {
+                return entry.id;
+            }
+            LOGGER.warning("Message from " + entry.getSource() + " too large to be journaled");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot journal message from " + entry.getSource(), e);
+        }
+        return 0;
+    }
+
+    /**
+     * Marks an entry as done, once the builds for its message are queued.
+     */
+    public synchronized void done(long id) {
+        Segment s = pending.remove(id);
+        if (s == null) {
+            return;
+        }
+        try {
+            append(DONE, id, new byte[0]);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot journal completion of entry " + id, e);
+        }
+        s.pending--;
+        compact();
+    }
+
+    /**
+     * Keeps an entry pending for the jobs whose builds could not be scheduled, replacing the original entry, and
+     * keeps it to be replayed on the next replay.
+     */
+    public synchronized void failed(Entry e, List<String> jobs) {
+        Entry retry = new Entry(e.source, e.timestamp, e.expiration, jobs, e.parameters, e.propertyParameters);
+        try {
+            if (append(retry)) {
+                unreplayed.add(retry);
+                done(e.id);
+                return;
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Cannot journal message from " + e.getSource(), ex);
+        }
+        // The original entry stays pending, for all of its jobs
+        unreplayed.add(e);
+    }
+
+    /**
+     * Dispatches the builds for all messages left pending when Jenkins last stopped, and for those which failed to
+     * replay before, and marks each done once its builds are queued. Scheduling a build is retried as for a message
+     * just received. If it still fails, the message is kept pending for those jobs only, to be replayed again on the
+     * next startup or when the journal is configured. Messages for jobs which no longer have a trigger are dropped.
+     */
+    public void replay(TriggerIndex triggerIndex) {
+        List<Entry> entries;
+        try {
+            entries = takeUnreplayed();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Cannot open trigger journal " + dir, e);
+            return;
+        }
+        if (!entries.isEmpty()) {
+            LOGGER.info("Replaying " + entries.size() + " journaled messages");
+        }
+        for (Entry e : entries) {
+            List<AmqpBuildTrigger> targets = new ArrayList<AmqpBuildTrigger>();
+            for (String job : e.getJobs()) {
+                AmqpBuildTrigger t = triggerIndex.get(job);
+                if (t != null) {
+                    targets.add(t);
+                }
+            }
+            if (targets.isEmpty()) {
+                done(e.id);
+                continue;
+            }
+            Replay replay = new Replay(e, targets.size());
+            for (AmqpBuildTrigger t : targets) {
+                replay.dispatch(t, 0);
+            }
+        }
+    }
+
+    /**
+     * Loads the journal if it is not yet open, and takes the entries waiting to be replayed.
+     */
+    synchronized List<Entry> takeUnreplayed() throws IOException {
+        load();
+        List<Entry> entries = new ArrayList<Entry>(unreplayed);
+        unreplayed.clear();
+        return entries;
+    }
+
+    public synchronized void close() {
+        for (Segment s : segments.values()) {
+            s.buffer.force();
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /**
+     * Loads the entries left pending by the last run if the journal is not yet open, copying them forward into a
+     * fresh segment, and keeps them to be replayed. This happens on the first replay or the first message journaled,
+     * whichever comes first.
+     */
+    private void load() throws IOException {
+        if (active != null) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+        List<File> old = new ArrayList<File>();
+        List<File> corrupt = new ArrayList<File>();
+        long segmentNumber = 0;
+        for (Map.Entry<Long, File> f : listSegments().entrySet()) {
+            segmentNumber = f.getKey();
+            boolean intact;
+            try {
+                intact = read(f.getValue(), entries);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read journal segment " + f.getValue(), e);
+                intact = false;
+            }
+            (intact ? old : corrupt).add(f.getValue());
+        }
+        active = openSegment(segmentNumber + 1);
+        // Entries keep their ids, so that a copy left behind by an interrupted compaction is not replayed twice
+        for (Entry e : entries.values()) {
+            append(ACCEPT, e.id, e.encode());
+            pending.put(e.id, active);
+            active.pending++;
+        }
+        for (Segment s : segments.values()) {
+            s.buffer.force();
+        }
+        for (File f : old) {
+            if (!f.delete()) {
+                LOGGER.warning("Cannot delete journal segment " + f);
+            }
+        }
+        // Kept aside for inspection rather than deleted, and no longer read, so the journal works on without them
+        for (File f : corrupt) {
+            File quarantined = new File(f.getPath() + CORRUPT_SUFFIX);
+            if (f.renameTo(quarantined)) {
+                LOGGER.warning("Moved corrupt journal segment to " + quarantined);
+            } else if (!f.delete()) {
+                LOGGER.warning("Cannot move or delete corrupt journal segment " + f);
+            }
+        }
+        unreplayed.addAll(entries.values());
+    }
+
+    /**
+     * Records an entry under a new id.
+     *
+     * @return false if the entry does not fit in a segment at all
+     */
+    private boolean append(Entry entry) throws IOException {
+        long id = nextId++;
+        if (!append(ACCEPT, id, entry.encode())) {
+            return false;
+        }
+        entry.id = id;
+        pending.put(id, active);
+        active.pending++;
+        return true;
+    }
+
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> files = new TreeMap<Long, File>();
+        File[] list = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (list != null) {
+            for (File f : list) {
+                String n = f.getName();
+                try {
+                    files.put(Long.parseLong(n.substring(SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length())), f);
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Ignoring unknown file " + f + " in trigger journal");
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Reads the entries of a segment. A record which cannot be decoded is skipped, the length of each record being
+     * known, so the rest of the segment is still read.
+     *
+     * @return false if any record was skipped
+     */
+    private boolean read(File file, Map<Long, Entry> entries) throws IOException {
+        boolean intact = true;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buf.remaining() >= HEADER_SIZE) {
+                int length = buf.getInt();
+                // A record is complete once its length is written, a zero length marks the end of the segment
+                if (length < HEADER_SIZE - 4 || length > buf.remaining()) {
+                    break;
+                }
+                byte type = buf.get();
+                long id = buf.getLong();
+                byte[] payload = new byte[length - (HEADER_SIZE - 4)];
+                buf.get(payload);
+                nextId = Math.max(nextId, id + 1);
+                if (type == ACCEPT) {
+                    Entry e;
+                    try {
+                        e = Entry.decode(payload);
+                    } catch (IOException ex) {
+                        LOGGER.warning("Skipping corrupt entry " + id + " in journal segment " + file + ". " + ex.getMessage());
+                        intact = false;
+                        continue;
+                    }
+                    e.id = id;
+                    entries.put(id, e);
+                } else if (type == DONE) {
+                    entries.remove(id);
+                } else {
+                    LOGGER.warning("Skipping record of unknown type " + type + " in journal segment " + file);
+                    intact = false;
+                }
+            }
+        }
+        return intact;
+    }
+
+    private Segment openSegment(long number) throws IOException {
+        File file = new File(dir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            Segment s = new Segment(number, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE));
+            segments.put(number, s);
+            return s;
+        }
+    }
+
+    /**
+     * @return false if the record does not fit in a segment at all
+     */
+    private boolean append(byte type, long id, byte[] payload) throws IOException {
+        int size = HEADER_SIZE + payload.length;
+        // Leave room for the zero length which ends the segment
+        if (size + 4 > SEGMENT_SIZE) {
+            return false;
+        }
+        if (active.buffer.remaining() < size + 4) {
+            active.buffer.force();
+            active = openSegment(active.number + 1);
+            compact();
+        }
+        MappedByteBuffer buf = active.buffer;
+        int start = buf.position();
+        buf.position(start + 4);
+        buf.put(type);
+        buf.putLong(id);
+        buf.put(payload);
+        buf.putInt(start, size - 4);
+        return true;
+    }
+
+    /**
+     * Deletes the oldest segments once all their entries are done. Segments are only deleted oldest first, since
+     * the completion of an entry may be recorded in a later segment than the entry itself.
+     */
+    private void compact() {
+        while (!segments.isEmpty()) {
+            Segment s = segments.firstEntry().getValue();
+            if (s == active || s.pending > 0) {
+                break;
+            }
+            segments.remove(s.number);
+            if (!s.file.delete()) {
+                LOGGER.warning("Cannot delete journal segment " + s.file);
+            }
+        }
+    }
+
+    /**
+     * Collects the results of replaying one entry.
+     */
+    private class Replay {
+        private final Entry entry;
+        private final TriggerMessage message;
+        private final AtomicInteger remaining;
+        private final List<String> failedJobs = Collections.synchronizedList(new ArrayList<String>());
+
+        Replay(Entry entry, int count) {
+            this.entry = entry;
+            this.message = entry.toTriggerMessage();
+            this.remaining = new AtomicInteger(count);
+        }
+
+        void dispatch(final AmqpBuildTrigger t, final int attempt) {
+            final Consumer<Boolean> callback = new Consumer<Boolean>() {
+                @Override
+                public void accept(Boolean scheduled) {
+                    if (!scheduled) {
+                        boolean retrying = RetryPolicy.getInstance().retry(new Runnable() {
+                            @Override
+                            public void run() {
+                                dispatch(t, attempt + 1);
+                            }
+                        }, attempt);
+                        if (retrying) {
+                            return;
+                        }
+                        failedJobs.add(t.getProjectName());
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        completed();
+                    }
+                }
+            };
+            TriggerDispatcher.getInstance().dispatch(t.getProjectName(), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        t.scheduleBuild(message, callback);
+                    } catch (RuntimeException ex) {
+                        LOGGER.warning("Exception thrown while replaying message for " + t.getProjectName() + ": " + ex.getMessage());
+                        callback.accept(false);
+                    }
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    callback.accept(false);
+                }
+            });
+        }
+
+        private void completed() {
+            // The journal is written on the connect threads, not on the thread which schedules the builds
+            ConnectionManager.getInstance().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (failedJobs.isEmpty()) {
+                        replayedCount.incrementAndGet();
+                        done(entry.id);
+                    } else {
+                        LOGGER.warning("Cannot replay journaled message from " + entry.getSource() + " for " + failedJobs
+                                + ", keeping it for the next replay");
+                        failed(entry, new ArrayList<String>(failedJobs));
+                    }
+                }
+            });
+        }
+    }
+
+    private static class Segment {
+        private final long number;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int pending = 0;
+
+        Segment(long number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A message as recorded in the journal: the jobs it triggers and the parameters extracted from it.
+     */
+    public static class Entry {
+        private final String source;
+        private final long timestamp;
+        private final long expiration;
+        private final List<String> jobs;
+        private final List<TriggerMessage.Parameter> parameters;
+        private final List<TriggerMessage.Parameter> propertyParameters;
+        private long id;
+
+        /**
+         * @param parameters the parameters from the body, {@code null} if no job takes parameters from the body
+         * @param propertyParameters the parameters from the properties, {@code null} if no job takes them
+         */
+        public Entry(String source, long timestamp, long expiration, List<String> jobs,
+                     List<TriggerMessage.Parameter> parameters, List<TriggerMessage.Parameter> propertyParameters) {
+            this.source = source;
+            this.timestamp = timestamp;
+            this.expiration = expiration;
+            this.jobs = jobs;
+            this.parameters = parameters;
+            this.propertyParameters = propertyParameters;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public List<String> getJobs() {
+            return jobs;
+        }
+
+        TriggerMessage toTriggerMessage() {
+            return new TriggerMessage(source, timestamp, expiration,
+                    parameters != null ? parameters : Collections.<TriggerMessage.Parameter>emptyList(),
+                    propertyParameters != null ? propertyParameters : Collections.<TriggerMessage.Parameter>emptyList());
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, source);
+            out.writeLong(timestamp);
+            out.writeLong(expiration);
+            out.writeInt(jobs.size());
+            for (String job : jobs) {
+                writeString(out, job);
+            }
+            writeParameters(out, parameters);
+            writeParameters(out, propertyParameters);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        static Entry decode(byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            String source = readString(in);
+            long timestamp = in.readLong();
+            long expiration = in.readLong();
+            int count = readCount(in);
+            List<String> jobs = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                jobs.add(readString(in));
+            }
+            List<TriggerMessage.Parameter> parameters = readParameters(in);
+            List<TriggerMessage.Parameter> propertyParameters = readParameters(in);
+            return new Entry(source, timestamp, expiration, jobs, parameters, propertyParameters);
+        }
+
+        private static void writeParameters(DataOutputStream out, List<TriggerMessage.Parameter> list) throws IOException {
+            if (list == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(list.size());
+            for (TriggerMessage.Parameter p : list) {
+                writeString(out, p.getName());
+                writeString(out, p.getValue());
+            }
+        }
+
+        private static List<TriggerMessage.Parameter> readParameters(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            if (count < 0) {
+                return null;
+            }
+            checkCount(in, count);
+            List<TriggerMessage.Parameter> list = new ArrayList<TriggerMessage.Parameter>(count);
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                list.add(new TriggerMessage.Parameter(name, readString(in)));
+            }
+            return list;
+        }
+
+        private static int readCount(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            checkCount(in, count);
+            return count;
+        }
+
+        // Every item takes at least a byte, so a larger count can only come from a corrupt record
+        private static void checkCount(DataInputStream in, int count) throws IOException {
+            if (count < 0 || count > in.available()) {
+                throw new IOException("Corrupt record, count " + count + " with " + in.available() + " bytes left");
+            }
+        }
+
+        // Not writeUTF, which is limited to 64k
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] b = new byte[readCount(in)];
+            in.readFully(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * A received message as seen by the triggers. The payload is decoded and parsed at most once, however many
+ * triggers the message is delivered to.
+ */
+public class TriggerMessage {
+    private static final Logger LOGGER = Logger.getLogger(TriggerMessage.class.getName());
+    private static final String JMS_PROPERTY_PREFIX = "JMS";
+
+    private final String source;
+    private final Message message;
+    private final Predicate<String> nameFilter;
+    private final long timestamp;
+    private final long expiration;
+    private volatile List<Parameter> parameters = null;
+    private volatile List<Parameter> propertyParameters = null;
+    private final AtomicBoolean stale = new AtomicBoolean();
+
+    public TriggerMessage(String source, Message message) {
+        this(source, message, null);
+    }
+
+    /**
+     * @param nameFilter if not {@code null}, only payload entries whose case-folded name it accepts are extracted
+     */
+    public TriggerMessage(String source, Message message, Predicate<String> nameFilter) {
+        this.source = source;
+        this.message = message;
+        this.nameFilter = nameFilter;
+        long t = 0;
+        long e = 0;
+        try {
+            // The AMQP creation time and absolute expiry time, read from the header without touching the body
+            t = message.getJMSTimestamp();
+            e = message.getJMSExpiration();
+        } catch (JMSException ex) {
+            LOGGER.warning("Cannot read timestamps of message " + message + ". " + ex.getMessage());
+        }
+        this.timestamp = t;
+        this.expiration = e;
+    }
+
+    /**
+     * A message replayed from the {@link TriggerJournal}, whose parameters were extracted when it was received.
+     */
+    public TriggerMessage(String source, long timestamp, long expiration, List<Parameter> parameters,
+                          List<Parameter> propertyParameters) {
+        this.source = source;
+        this.message = null;
+        this.nameFilter = null;
+        this.timestamp = timestamp;
+        this.expiration = expiration;
+        this.parameters = Collections.unmodifiableList(parameters);
+        this.propertyParameters = Collections.unmodifiableList(propertyParameters);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Records that a trigger found the message stale.
+     *
+     * @return true the first time only, so that the message is counted once however many triggers discard it
+     */
+    boolean markStale() {
+        return stale.compareAndSet(false, true);
+    }
+
+    /**
+     * @return the time in ms at which the message was created, or 0 if it is not known
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the time in ms after which the message is expired, or 0 if it does not expire
+     */
+    public long getExpiration() {
+        return expiration;
+    }
+
+    public boolean isExpired(long now) {
+        return expiration > 0 && now > expiration;
+    }
+
+    /**
+     * The name/value pairs carried by the payload, in payload order. Empty if the payload does not hold any in a
+     * known format, see {@link MessageBodyDecoder}.
+     */
+    public List<Parameter> getParameters() {
+        List<Parameter> p = parameters;
+        if (p == null) {
+            synchronized (this) {
+                p = parameters;
+                if (p == null) {
+                    p = parseParameters();
+                    parameters = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * The application properties of the message as name/value pairs. JMS defined properties are not included.
+     */
+    public List<Parameter> getPropertyParameters() {
+        List<Parameter> p = propertyParameters;
+        if (p == null) {
+            synchronized (this) {
+                p = propertyParameters;
+                if (p == null) {
+                    p = readPropertyParameters();
+                    propertyParameters = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    private List<Parameter> readPropertyParameters() {
+        List<Parameter> list = new ArrayList<Parameter>();
+        Enumeration<?> names;
+        try {
+            names = message.getPropertyNames();
+        } catch (JMSException e) {
+            LOGGER.warning("Cannot read properties of message " + message + ". " + e.getMessage());
+            return Collections.emptyList();
+        }
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            if (!name.startsWith(JMS_PROPERTY_PREFIX)) {
+                // A property that cannot be read is skipped, the others are still passed on
+                try {
+                    String value = message.getStringProperty(name);
+                    if (value != null) {
+                        list.add(new Parameter(name, value));
+                    }
+                } catch (JMSException e) {
+                    LOGGER.warning("Cannot read property " + name + " of message " + message + ". " + e.getMessage());
+                }
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private List<Parameter> parseParameters() {
+        List<Parameter> list = MessageBodyDecoder.decode(message, nameFilter);
+        if (list == null) {
+            LOGGER.info("Message NOT in JSONArray format");
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public String toString() {
+        return source + "; msg=" + (message != null ? message.toString() : "replayed from journal");
+    }
+
+    public static class Parameter {
+        private final String name;
+        private final String key;
+        private final String value;
+
+        public Parameter(String name, String value) {
+            this(name, ParameterMapping.fold(name), value);
+        }
+
+        Parameter(String name, String key, String value) {
+            this.name = name;
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Case-folded name, computed once per message rather than per trigger */
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + value;
+        }
+    }
+}
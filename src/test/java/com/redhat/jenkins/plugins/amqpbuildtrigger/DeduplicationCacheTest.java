@@ -0,0 +1,107 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeduplicationCacheTest {
+    private static final List<String> JOBS = Arrays.asList("a", "b", "c");
+
+    @Test
+    public void firstDeliveryReservesAllJobs() {
+        DeduplicationCache cache = new DeduplicationCache(60000, 100);
+        assertEquals(JOBS, cache.reserve("m1", JOBS));
+        assertEquals(JOBS, cache.reserve("m2", JOBS));
+        assertEquals(2, cache.getSize());
+        assertEquals(0, cache.getDuplicateCount());
+    }
+
+    @Test
+    public void secondDeliveryIsADuplicate() {
+        DeduplicationCache cache = new DeduplicationCache(60000, 100);
+        cache.reserve("m1", JOBS);
+        assertEquals(Collections.emptyList(), cache.reserve("m1", JOBS));
+        assertEquals(Collections.emptyList(), cache.reserve("m1", JOBS));
+        // Counted once per message delivered, not per job
+        assertEquals(2, cache.getDuplicateCount());
+    }
+
+    @Test
+    public void releasedJobsAreReservedAgainOnce() {
+        DeduplicationCache cache = new DeduplicationCache(60000, 100);
+        cache.reserve("m1", JOBS);
+        cache.release("m1", "b");
+        cache.release("m1", "c");
+        assertEquals(Arrays.asList("b", "c"), cache.reserve("m1", JOBS));
+        assertEquals(0, cache.getDuplicateCount());
+        assertEquals(Collections.emptyList(), cache.reserve("m1", JOBS));
+        assertEquals(1, cache.getDuplicateCount());
+    }
+
+    @Test
+    public void releasedJobIsOnlyReservedIfStillTriggered() {
+        DeduplicationCache cache = new DeduplicationCache(60000, 100);
+        cache.reserve("m1", JOBS);
+        cache.release("m1", "c");
+        assertEquals(Collections.emptyList(), cache.reserve("m1", Arrays.asList("a", "b")));
+        assertEquals(Arrays.asList("c"), cache.reserve("m1", JOBS));
+    }
+
+    @Test
+    public void releaseOfUnknownKeyIsIgnored() {
+        DeduplicationCache cache = new DeduplicationCache(60000, 100);
+        cache.release("m1", "a");
+        cache.release(null, "a");
+        assertEquals(0, cache.getSize());
+        assertEquals(JOBS, cache.reserve("m1", JOBS));
+    }
+
+    @Test
+    public void messagesWithoutKeyAreNeverDuplicates() {
+        DeduplicationCache cache = new DeduplicationCache(60000, 100);
+        assertEquals(JOBS, cache.reserve(null, JOBS));
+        assertEquals(JOBS, cache.reserve(null, JOBS));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void zeroWindowTurnsDeduplicationOff() {
+        DeduplicationCache cache = new DeduplicationCache(0, 100);
+        assertEquals(false, cache.isEnabled());
+        assertEquals(JOBS, cache.reserve("m1", JOBS));
+        assertEquals(JOBS, cache.reserve("m1", JOBS));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void keysAreForgottenAfterTheWindow() throws InterruptedException {
+        DeduplicationCache cache = new DeduplicationCache(100, 100);
+        cache.reserve("m1", JOBS);
+        Thread.sleep(150);
+        assertEquals(JOBS, cache.reserve("m1", JOBS));
+        cache.reserve("m2", JOBS);
+        Thread.sleep(150);
+        // Recording a key evicts the expired ones
+        cache.reserve("m3", JOBS);
+        assertEquals(1, cache.getSize());
+        assertEquals(0, cache.getDuplicateCount());
+    }
+
+    @Test
+    public void oldestKeysAreForgottenBeyondCapacity() {
+        DeduplicationCache cache = new DeduplicationCache(60000, 2);
+        cache.reserve("m1", JOBS);
+        cache.reserve("m2", JOBS);
+        cache.reserve("m3", JOBS);
+        assertEquals(2, cache.getSize());
+        assertEquals(Collections.emptyList(), cache.reserve("m3", JOBS));
+        assertEquals(Collections.emptyList(), cache.reserve("m2", JOBS));
+        assertEquals(JOBS, cache.reserve("m1", JOBS));
+        // m1 was recorded again, so m2 is now the oldest
+        assertEquals(JOBS, cache.reserve("m2", JOBS));
+    }
+}
@@ -0,0 +1,153 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+public class PayloadParserTest {
+
+    @Test
+    public void parsesNameValuePairsInOrder() {
+        assertEquals("[A=1, b=two]", parse("[{\"name\": \"A\", \"value\": \"1\"}, {\"value\": \"two\", \"name\": \"b\"}]"));
+    }
+
+    @Test
+    public void parsesEmptyArray() {
+        assertEquals("[]", parse(" [ ] "));
+    }
+
+    @Test
+    public void keysAreCaseFolded() {
+        List<TriggerMessage.Parameter> list = PayloadParser.parse("[{\"name\":\"branch\",\"value\":\"main\"}]", null);
+        assertEquals("branch", list.get(0).getName());
+        assertEquals("BRANCH", list.get(0).getKey());
+    }
+
+    @Test
+    public void unescapesStrings() {
+        assertEquals("[A=a\"b\\c/d\ne\tf]", parse("[{\"name\":\"A\",\"value\":\"a\\\"b\\\\c\\/d\\ne\\tf\"}]"));
+    }
+
+    @Test
+    public void unescapesUnicode() {
+        assertEquals("[A=é😀x]", parse("[{\"name\":\"A\",\"value\":\"\\u00e9\\ud83d\\ude00x\"}]"));
+    }
+
+    @Test
+    public void keepsUnescapedNonAscii() {
+        assertEquals("[ÉTÉ=日本]", parse("[{\"name\":\"ÉTÉ\",\"value\":\"日本\"}]"));
+    }
+
+    @Test
+    public void returnsOtherValuesAsText() {
+        assertEquals("[A=-1.5e3, B=true, C=null, D={\"x\": [1]}]",
+                parse("[{\"name\":\"A\",\"value\":-1.5e3},{\"name\":\"B\",\"value\":true},{\"name\":\"C\",\"value\":null},"
+                        + "{\"name\":\"D\",\"value\":{\"x\": [1]}}]"));
+    }
+
+    @Test
+    public void skipsOtherKeysAndNestedValues() {
+        assertEquals("[A=1]", parse("[{\"meta\": {\"list\": [1, {\"s\": \"]}\\\"\"}], \"n\": null}, \"name\": \"A\","
+                + " \"value\": \"1\", \"extra\": [[], {}]}]"));
+    }
+
+    @Test
+    public void skipsElementsWhichAreNotEntries() {
+        assertEquals("[A=1]", parse("[1, \"text\", [{\"name\":\"X\",\"value\":\"2\"}], {\"name\":\"A\",\"value\":\"1\"}, null]"));
+    }
+
+    @Test
+    public void ignoresEntriesWithoutNameOrValue() {
+        assertEquals("[]", parse("[{\"name\":\"A\"}, {\"value\":\"1\"}, {}]"));
+    }
+
+    @Test
+    public void acceptsUnquotedKeysAndSingleQuotes() {
+        assertEquals("[BRANCH=main, B=it's]", parse("[{name:'BRANCH',value:'main'}, {'name' : 'B', 'value' : 'it\\'s'}]"));
+    }
+
+    @Test
+    public void acceptsUnquotedValues() {
+        assertEquals("[BRANCH=feature one]", parse("[{name: BRANCH, value: feature one }]"));
+    }
+
+    @Test
+    public void skipsByteOrderMark() {
+        assertEquals("[A=1]", parse("\uFEFF[{\"name\":\"A\",\"value\":\"1\"}]"));
+    }
+
+    @Test
+    public void appliesNameFilter() {
+        Predicate<String> filter = new Predicate<String>() {
+            @Override
+            public boolean test(String key) {
+                return key.equals("B");
+            }
+        };
+        assertEquals("[b=2]", toString(PayloadParser.parse("[{\"name\":\"a\",\"value\":\"1\"},{\"name\":\"b\",\"value\":\"2\"}]", filter)));
+    }
+
+    @Test
+    public void rejectsInputWhichIsNotAnArray() {
+        assertNull(PayloadParser.parse((CharSequence) null, null));
+        assertNull(PayloadParser.parse("", null));
+        assertNull(PayloadParser.parse("hello", null));
+        assertNull(PayloadParser.parse("{\"name\":\"A\",\"value\":\"1\"}", null));
+    }
+
+    @Test
+    public void rejectsMalformedArrays() {
+        assertNull(PayloadParser.parse("[", null));
+        assertNull(PayloadParser.parse("[{\"name\":\"A\",\"value\":\"1\"}", null));
+        assertNull(PayloadParser.parse("[{\"name\":\"A\",\"value\":\"1}]", null));
+        assertNull(PayloadParser.parse("[{\"name\" \"A\"}]", null));
+        assertNull(PayloadParser.parse("[{\"name\":\"A\",}]", null));
+        assertNull(PayloadParser.parse("[{\"value\":{\"x\":1}]", null));
+        assertNull(PayloadParser.parse("[1 : 2]", null));
+        assertNull(PayloadParser.parse("[] []", null));
+    }
+
+    @Test
+    public void parsesUtf8Bytes() {
+        assertEquals("[ÉTÉ=日本 😀, B=x\ny, C=é]", parseBytes("\uFEFF[{\"name\":\"ÉTÉ\",\"value\":\"日本 😀\"},"
+                + "{name:'B',value:'x\\ny'},{\"name\":\"C\",\"value\":\"\\u00e9\"}]"));
+    }
+
+    @Test
+    public void keepsNonAsciiAroundEscapesInBytes() {
+        assertEquals("[A=é\"ü\"ß]", parseBytes("[{\"name\":\"A\",\"value\":\"é\\\"ü\\\"ß\"}]"));
+    }
+
+    @Test
+    public void replacesMalformedUtf8() {
+        byte[] payload = "[{\"name\":\"A\",\"value\":\"x?y\"}]".getBytes(StandardCharsets.UTF_8);
+        payload[payload.length - 5] = (byte) 0xC3;
+        assertEquals("[A=x\uFFFDy]", toString(PayloadParser.parse(payload, null)));
+    }
+
+    @Test
+    public void rejectsBytesWhichAreNotAnArray() {
+        assertNull(PayloadParser.parse((byte[]) null, null));
+        assertNull(PayloadParser.parse(new byte[0], null));
+        assertNull(parseBytes("{\"name\":\"A\",\"value\":\"1\"}"));
+        assertNull(parseBytes("[{\"name\":\"A\",\"value\":\"日本}]"));
+    }
+
+    private static String parse(String payload) {
+        return toString(PayloadParser.parse(payload, null));
+    }
+
+    private static String parseBytes(String payload) {
+        return toString(PayloadParser.parse(payload.getBytes(StandardCharsets.UTF_8), null));
+    }
+
+    private static String toString(List<TriggerMessage.Parameter> list) {
+        return list != null ? new ArrayList<TriggerMessage.Parameter>(list).toString() : null;
+    }
+}
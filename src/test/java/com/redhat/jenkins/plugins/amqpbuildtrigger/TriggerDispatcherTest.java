@@ -0,0 +1,192 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TriggerDispatcherTest {
+    private static final long TIMEOUT = 10000; // ms
+
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> dropped = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void dispatchesForOneKeyRunInOrder() throws InterruptedException {
+        TriggerDispatcher dispatcher = new TriggerDispatcher(4, 1000, TriggerDispatcher.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 100; i++) {
+            for (String key : new String[] {"a", "b", "c"}) {
+                dispatcher.dispatch(key, new Record(key + i) {
+                    @Override
+                    public void run() {
+                        // Varying durations, so that the lanes interleave
+                        try {
+                            Thread.sleep(ThreadLocalRandom.current().nextInt(2));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.run();
+                    }
+                }, null);
+            }
+        }
+        awaitCompleted(dispatcher, 300);
+        for (String key : new String[] {"a", "b", "c"}) {
+            List<String> expected = new ArrayList<String>();
+            List<String> actual = new ArrayList<String>();
+            for (int i = 0; i < 100; i++) {
+                expected.add(key + i);
+            }
+            synchronized (ran) {
+                for (String s : ran) {
+                    if (s.startsWith(key)) {
+                        actual.add(s);
+                    }
+                }
+            }
+            assertEquals(expected, actual);
+        }
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void otherKeysRunWhileOneIsBlocked() throws InterruptedException {
+        TriggerDispatcher dispatcher = new TriggerDispatcher(2, 10, TriggerDispatcher.OverflowPolicy.BLOCK);
+        dispatcher.dispatch("a", blocker(), null);
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        dispatcher.dispatch("a", new Record("a1"), null);
+        dispatcher.dispatch("b", new Record("b1"), null);
+        awaitCompleted(dispatcher, 1);
+        assertEquals("[b1]", ran.toString());
+
+        release.countDown();
+        awaitCompleted(dispatcher, 3);
+        assertEquals("[b1, a1]", ran.toString());
+    }
+
+    @Test
+    public void dropNewestDropsTheNewDispatchWhenFull() throws InterruptedException {
+        TriggerDispatcher dispatcher = new TriggerDispatcher(1, 2, TriggerDispatcher.OverflowPolicy.DROP_NEWEST);
+        dispatcher.dispatch("a", blocker(), null);
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        dispatch(dispatcher, "a", "a1");
+        dispatch(dispatcher, "a", "a2");
+        assertEquals(2, dispatcher.getQueueDepth());
+        dispatch(dispatcher, "a", "a3");
+        assertEquals("[a3]", dropped.toString());
+        assertEquals(1, dispatcher.getDroppedCount());
+
+        release.countDown();
+        awaitCompleted(dispatcher, 3);
+        assertEquals("[a1, a2]", ran.toString());
+    }
+
+    @Test
+    public void dropOldestDropsTheOldestDispatchForTheSameKey() throws InterruptedException {
+        TriggerDispatcher dispatcher = new TriggerDispatcher(1, 2, TriggerDispatcher.OverflowPolicy.DROP_OLDEST);
+        dispatcher.dispatch("a", blocker(), null);
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        dispatch(dispatcher, "a", "a1");
+        dispatch(dispatcher, "b", "b1");
+        dispatch(dispatcher, "a", "a2");
+        assertEquals("[a1]", dropped.toString());
+        // Nothing is queued for c, so the new dispatch is dropped instead
+        dispatch(dispatcher, "c", "c1");
+        assertEquals("[a1, c1]", dropped.toString());
+        assertEquals(2, dispatcher.getDroppedCount());
+        assertEquals(2, dispatcher.getQueueDepth());
+
+        release.countDown();
+        awaitCompleted(dispatcher, 3);
+        assertEquals("[a2, b1]", sorted(ran));
+    }
+
+    @Test
+    public void blockWaitsForRoomAndKeepsTheOrder() throws InterruptedException {
+        final TriggerDispatcher dispatcher = new TriggerDispatcher(1, 1, TriggerDispatcher.OverflowPolicy.BLOCK);
+        dispatcher.dispatch("a", blocker(), null);
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        dispatch(dispatcher, "a", "a1");
+        Thread delivery = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch(dispatcher, "a", "a2");
+            }
+        });
+        delivery.start();
+        delivery.join(200);
+        assertTrue(delivery.isAlive());
+        assertEquals(1, dispatcher.getQueueDepth());
+
+        release.countDown();
+        delivery.join(TIMEOUT);
+        assertFalse(delivery.isAlive());
+        awaitCompleted(dispatcher, 3);
+        assertEquals("[a1, a2]", ran.toString());
+        assertEquals("[]", dropped.toString());
+    }
+
+    private void dispatch(TriggerDispatcher dispatcher, String key, final String name) {
+        dispatcher.dispatch(key, new Record(name), new Runnable() {
+            @Override
+            public void run() {
+                dropped.add(name);
+            }
+        });
+    }
+
+    // Runs until released, holding up its key and one dispatch thread
+    private Runnable blocker() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static void awaitCompleted(TriggerDispatcher dispatcher, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (dispatcher.getCompletedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, dispatcher.getCompletedCount());
+    }
+
+    private static String sorted(List<String> list) {
+        List<String> copy;
+        synchronized (list) {
+            copy = new ArrayList<String>(list);
+        }
+        Collections.sort(copy);
+        return copy.toString();
+    }
+
+    private class Record implements Runnable {
+        private final String name;
+
+        Record(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            ran.add(name);
+        }
+    }
+}
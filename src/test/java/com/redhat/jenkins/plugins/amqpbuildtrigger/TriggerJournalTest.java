@@ -0,0 +1,193 @@
+package com.redhat.jenkins.plugins.amqpbuildtrigger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TriggerJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void pendingEntriesAreReplayedAfterRestart() throws IOException {
+        File dir = tmp.newFolder();
+        TriggerJournal journal = new TriggerJournal(dir);
+        long first = journal.accept(entry("a", "b"));
+        long second = journal.accept(new TriggerJournal.Entry("amqp://host/q", 1000, 2000, Arrays.asList("c"),
+                Arrays.asList(new TriggerMessage.Parameter("BRANCH", "main"), new TriggerMessage.Parameter("N", "é")),
+                null));
+        journal.done(first);
+        assertEquals(1, journal.getPendingCount());
+
+        List<TriggerJournal.Entry> entries = new TriggerJournal(dir).takeUnreplayed();
+        assertEquals(1, entries.size());
+        TriggerJournal.Entry e = entries.get(0);
+        assertEquals(second, e.getId());
+        assertEquals("amqp://host/q", e.getSource());
+        assertEquals(Arrays.asList("c"), e.getJobs());
+        TriggerMessage message = e.toTriggerMessage();
+        assertEquals(1000, message.getTimestamp());
+        assertEquals(2000, message.getExpiration());
+        assertEquals("[BRANCH=main, N=é]", message.getParameters().toString());
+        assertEquals("[]", message.getPropertyParameters().toString());
+    }
+
+    @Test
+    public void doneEntriesAreNotReplayed() throws IOException {
+        File dir = tmp.newFolder();
+        TriggerJournal journal = new TriggerJournal(dir);
+        journal.done(journal.accept(entry("a")));
+        journal.done(journal.accept(entry("b")));
+        assertEquals(0, journal.getPendingCount());
+
+        TriggerJournal restarted = new TriggerJournal(dir);
+        assertEquals(0, restarted.takeUnreplayed().size());
+        assertEquals(0, restarted.getPendingCount());
+    }
+
+    @Test
+    public void entriesLoadedByAcceptAreStillReplayed() throws IOException {
+        File dir = tmp.newFolder();
+        long id = new TriggerJournal(dir).accept(entry("a"));
+
+        TriggerJournal restarted = new TriggerJournal(dir);
+        // The first message journaled opens the journal, before any replay
+        restarted.accept(entry("b"));
+        List<TriggerJournal.Entry> entries = restarted.takeUnreplayed();
+        assertEquals(1, entries.size());
+        assertEquals(id, entries.get(0).getId());
+        assertEquals(2, restarted.getPendingCount());
+        // Taken once only
+        assertEquals(0, restarted.takeUnreplayed().size());
+    }
+
+    @Test
+    public void loadCopiesEntriesForwardUnderTheirIds() throws IOException {
+        File dir = tmp.newFolder();
+        long id = new TriggerJournal(dir).accept(entry("a"));
+        assertEquals(Arrays.asList("segment-1.log"), segments(dir));
+
+        assertEquals(id, new TriggerJournal(dir).takeUnreplayed().get(0).getId());
+        assertEquals(Arrays.asList("segment-2.log"), segments(dir));
+
+        TriggerJournal journal = new TriggerJournal(dir);
+        assertEquals(id, journal.takeUnreplayed().get(0).getId());
+        assertEquals(Arrays.asList("segment-3.log"), segments(dir));
+        // Ids are not reused after a restart
+        assertTrue(journal.accept(entry("b")) > id);
+    }
+
+    @Test
+    public void failedEntryIsKeptForTheFailedJobsOnly() throws IOException {
+        File dir = tmp.newFolder();
+        new TriggerJournal(dir).accept(entry("a", "b", "c"));
+
+        TriggerJournal restarted = new TriggerJournal(dir);
+        TriggerJournal.Entry e = restarted.takeUnreplayed().get(0);
+        restarted.failed(e, Arrays.asList("b"));
+        assertEquals(1, restarted.getPendingCount());
+        List<TriggerJournal.Entry> retry = restarted.takeUnreplayed();
+        assertEquals(1, retry.size());
+        assertEquals(Arrays.asList("b"), retry.get(0).getJobs());
+        assertTrue(retry.get(0).getId() != e.getId());
+
+        List<TriggerJournal.Entry> entries = new TriggerJournal(dir).takeUnreplayed();
+        assertEquals(1, entries.size());
+        assertEquals(Arrays.asList("b"), entries.get(0).getJobs());
+    }
+
+    @Test
+    public void segmentsAreDeletedOnceTheirEntriesAreDone() throws IOException {
+        File dir = tmp.newFolder();
+        TriggerJournal journal = new TriggerJournal(dir);
+        // Each entry takes over a third of a segment, so a new segment is started every two entries
+        char[] value = new char[3 * 1024 * 1024];
+        Arrays.fill(value, 'x');
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(journal.accept(new TriggerJournal.Entry("amqp://host/q", 0, 0, Arrays.asList("a"),
+                    Collections.singletonList(new TriggerMessage.Parameter("P", new String(value))), null)));
+        }
+        assertEquals(3, segments(dir).size());
+        // An entry left pending keeps its segment, and every later one
+        journal.done(ids.get(1));
+        journal.done(ids.get(2));
+        journal.done(ids.get(3));
+        assertEquals(3, segments(dir).size());
+        journal.done(ids.get(0));
+        assertEquals(Arrays.asList("segment-3.log"), segments(dir));
+        assertEquals(1, journal.getPendingCount());
+    }
+
+    @Test
+    public void corruptEntryIsSkippedAndItsSegmentQuarantined() throws IOException {
+        File dir = tmp.newFolder();
+        TriggerJournal journal = new TriggerJournal(dir);
+        journal.accept(entry("a"));
+        long second = journal.accept(entry("b"));
+        journal.close();
+        // The length of the source string of the first record, after its length, type and id
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "segment-1.log"), "rw")) {
+            raf.seek(4 + 1 + 8);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        TriggerJournal restarted = new TriggerJournal(dir);
+        List<TriggerJournal.Entry> entries = restarted.takeUnreplayed();
+        assertEquals(1, entries.size());
+        assertEquals(second, entries.get(0).getId());
+        assertEquals(Arrays.asList("segment-1.log.corrupt", "segment-2.log"), files(dir));
+        // The journal is open, and goes on recording messages
+        assertTrue(restarted.accept(entry("c")) > second);
+        assertEquals(2, restarted.getPendingCount());
+
+        assertEquals(2, new TriggerJournal(dir).takeUnreplayed().size());
+    }
+
+    @Test
+    public void unreadableSegmentIsQuarantined() throws IOException {
+        File dir = tmp.newFolder();
+        // A directory where a segment is expected cannot be mapped
+        assertTrue(new File(dir, "segment-1.log").mkdir());
+
+        TriggerJournal journal = new TriggerJournal(dir);
+        assertEquals(0, journal.takeUnreplayed().size());
+        assertTrue(journal.accept(entry("a")) > 0);
+        assertEquals(Arrays.asList("segment-1.log.corrupt", "segment-2.log"), files(dir));
+    }
+
+    private static TriggerJournal.Entry entry(String... jobs) {
+        return new TriggerJournal.Entry("amqp://host/q", 0, 0, Arrays.asList(jobs),
+                Collections.singletonList(new TriggerMessage.Parameter("A", "1")),
+                Collections.singletonList(new TriggerMessage.Parameter("B", "2")));
+    }
+
+    private static List<String> segments(File dir) {
+        List<String> names = new ArrayList<String>();
+        for (String name : files(dir)) {
+            if (name.endsWith(".log")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static List<String> files(File dir) {
+        String[] names = dir.list();
+        List<String> list = names != null ? new ArrayList<String>(Arrays.asList(names)) : new ArrayList<String>();
+        Collections.sort(list);
+        return list;
+    }
+}